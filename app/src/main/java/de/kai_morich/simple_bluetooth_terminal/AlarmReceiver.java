@@ -1,35 +1,94 @@
 package de.kai_morich.simple_bluetooth_terminal;
 
+import android.app.AlarmManager;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Build;
 import android.widget.Toast;
 
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.NotificationManagerCompat;
+import androidx.core.content.ContextCompat;
+
 public class AlarmReceiver extends BroadcastReceiver {
 
-    // Esta función es llamada por el AlarmManager del sistema
+    // Esta función es llamada por el AlarmManager del sistema (ver AlarmScheduler)
+    // y después de reiniciar o cambiar la hora, para volver a programar las alarmas
     @Override
     public void onReceive(Context context, Intent intent) {
+        String action = intent.getAction();
+        AlarmScheduler scheduler = new AlarmScheduler(context);
 
-        // 1. Recuperamos el comando que guardamos (ej. "START 5")
-        String command = intent.getStringExtra("command");
-        if (command == null) {
-            return;
+        if (Constants.INTENT_ACTION_ALARM.equals(action)) {
+            // 1. Recuperamos las alarmas que vencieron (ej. "START 5")
+            //    El scheduler programa la siguiente alarma
+            for (AlarmScheduler.Alarm alarm : scheduler.onFired(System.currentTimeMillis())) {
+                // 2. Creamos un "Intent" para nuestro SerialService
+                //    (El servicio que maneja la conexión Bluetooth)
+                //    Si no está conectado, se conecta al dispositivo y envía el comando al conectar
+                Intent serviceIntent = new Intent(context, SerialService.class)
+                        .setAction(Constants.INTENT_ACTION_SEND)
+                        .putExtra("command", alarm.command)
+                        .putExtra("device", alarm.device);
+                // 3. Iniciamos el servicio para que envíe el comando
+                //    (las alarmas exactas permiten iniciar un servicio en primer plano desde segundo plano,
+                //    las inexactas no, sin permiso de alarmas exactas avisamos con una notificación)
+                try {
+                    ContextCompat.startForegroundService(context, serviceIntent);
+                } catch (IllegalStateException e) { // ForegroundServiceStartNotAllowedException
+                    notifyNotSent(context, alarm);
+                    continue;
+                }
+                Toast.makeText(context, "BreakFAST: ¡Enviando comando!", Toast.LENGTH_LONG).show();
+            }
+        } else if (Constants.INTENT_ACTION_WARMUP.equals(action)) {
+            // Poco antes de la alarma: conectar, para que a la hora solo quede enviar
+            Intent serviceIntent = new Intent(context, SerialService.class)
+                    .setAction(Constants.INTENT_ACTION_WARMUP)
+                    .putExtra("device", intent.getStringExtra("device"))
+                    .putExtra("time", intent.getLongExtra("time", 0));
+            try {
+                ContextCompat.startForegroundService(context, serviceIntent);
+            } catch (IllegalStateException ignored) {
+                // alarma inexacta, se conecta al enviar
+            }
+        } else if (Intent.ACTION_BOOT_COMPLETED.equals(action)
+                || Intent.ACTION_TIME_CHANGED.equals(action)
+                || Intent.ACTION_TIMEZONE_CHANGED.equals(action)
+                || Intent.ACTION_MY_PACKAGE_REPLACED.equals(action)
+                || AlarmManager.ACTION_SCHEDULE_EXACT_ALARM_PERMISSION_STATE_CHANGED.equals(action)) {
+            scheduler.reschedule();
         }
+    }
 
-        // 2. Creamos un "Intent" para nuestro SerialService
-        //    (El servicio que maneja la conexión Bluetooth)
-        Intent serviceIntent = new Intent(context, SerialService.class);
-
-        // 3. Le ponemos una "bandera" especial para que el servicio
-        //    sepa qué hacer
-        serviceIntent.setAction(Constants.INTENT_ACTION_SEND); // Crearemos esta constante
-        serviceIntent.putExtra("command", command); // Le pasamos el comando
-
-        // 4. Iniciamos el servicio para que envíe el comando
-        context.startService(serviceIntent);
-
-        // (Opcional) Muestra un Toast para saber que funcionó
-        Toast.makeText(context, "BreakFAST: ¡Enviando comando!", Toast.LENGTH_LONG).show();
+    // El comando no se pudo enviar: al tocar la notificación se abre la app
+    private static void notifyNotSent(Context context, AlarmScheduler.Alarm alarm) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel nc = new NotificationChannel(Constants.NOTIFICATION_CHANNEL_ALARM, "Alarmas", NotificationManager.IMPORTANCE_HIGH);
+            NotificationManager nm = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+            nm.createNotificationChannel(nc);
+        }
+        Intent restartIntent = new Intent()
+                .setClassName(context, Constants.INTENT_CLASS_MAIN_ACTIVITY)
+                .setAction(Intent.ACTION_MAIN)
+                .addCategory(Intent.CATEGORY_LAUNCHER);
+        int flags = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? PendingIntent.FLAG_IMMUTABLE : 0;
+        PendingIntent restartPendingIntent = PendingIntent.getActivity(context, 1, restartIntent, flags);
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(context, Constants.NOTIFICATION_CHANNEL_ALARM)
+                .setSmallIcon(R.drawable.ic_notification)
+                .setColor(context.getResources().getColor(R.color.colorPrimary))
+                .setContentTitle("BreakFAST: comando " + alarm.command + " no enviado")
+                .setContentText("Sin permiso de alarmas exactas. Toca para abrir la app")
+                .setContentIntent(restartPendingIntent)
+                .setAutoCancel(true);
+        try {
+            NotificationManagerCompat.from(context).notify(Constants.NOTIFY_MANAGER_ALARM_NOT_SENT, builder.build());
+        } catch (SecurityException ignored) {
+            // sin permiso de notificaciones
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,275 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * persistent alarms, fired by AlarmManager through AlarmReceiver into SerialService.
+ *
+ * Alarms are kept in a time ordered index in SharedPreferences. Only the earliest alarm is
+ * registered with AlarmManager, plus a warmup alarm SerialSession.WARMUP_LEAD before it,
+ * so the service can connect ahead of time. The index is rescheduled after each firing,
+ * after boot and after time changes.
+ * AlarmReceiver and TerminalFragment use separate instances, so each operation starts by
+ * reading the index again, a list kept in memory would write back alarms fired meanwhile.
+ *
+ * Not thread safe, use in main thread.
+ */
+class AlarmScheduler {
+
+    static final int EVERY_DAY = 0x7f;
+    private static final long MAX_LATE = 2 * 60 * 1000; // missed alarms fire late up to this limit, e.g. after reboot
+    private static final String PREFS_NAME = "alarms";
+    private static final String KEY_INDEX = "index";
+    private static final String KEY_NEXT_ID = "nextId";
+    private static final int REQUEST_FIRE = 0;
+    private static final int REQUEST_WARMUP = 1;
+
+    static final class Alarm {
+        final int id;
+        final int hour, minute;
+        final int days; // bit (Calendar.DAY_OF_WEEK - 1) per repeat day, 0 = once
+        final String command;
+        final String device;
+        long time; // next trigger, System.currentTimeMillis() time base
+
+        Alarm(int id, int hour, int minute, int days, String command, String device) {
+            this.id = id;
+            this.hour = hour;
+            this.minute = minute;
+            this.days = days;
+            this.command = command;
+            this.device = device;
+        }
+
+        /**
+         * first trigger time > after
+         */
+        long next(long after) {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(after);
+            calendar.set(Calendar.HOUR_OF_DAY, hour);
+            calendar.set(Calendar.MINUTE, minute);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            for(int day = 0; day <= 7; day++) {
+                if(calendar.getTimeInMillis() > after &&
+                        (days == 0 || (days & (1 << (calendar.get(Calendar.DAY_OF_WEEK) - 1))) != 0))
+                    break;
+                calendar.add(Calendar.DAY_OF_YEAR, 1);
+            }
+            return calendar.getTimeInMillis();
+        }
+    }
+
+    private final Context context;
+    private final SharedPreferences prefs;
+    private final ArrayList<Alarm> alarms = new ArrayList<>(); // ordered by time
+
+    AlarmScheduler(Context context) {
+        this.context = context.getApplicationContext();
+        prefs = this.context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return alarms ordered by next trigger time
+     */
+    List<Alarm> getAlarms() {
+        load();
+        return Collections.unmodifiableList(alarms);
+    }
+
+    /**
+     * @return next trigger time, 0 if no alarm
+     */
+    long getNextTime() {
+        load();
+        return alarms.isEmpty() ? 0 : alarms.get(0).time;
+    }
+
+    /**
+     * @return next trigger time of the device, 0 if no alarm
+     */
+    long getNextTime(String device) {
+        load();
+        for(Alarm alarm : alarms)
+            if(alarm.device.equals(device))
+                return alarm.time;
+        return 0;
+    }
+
+    Alarm add(int hour, int minute, int days, String command, String device) {
+        load();
+        int id = prefs.getInt(KEY_NEXT_ID, 1);
+        prefs.edit().putInt(KEY_NEXT_ID, id + 1).apply();
+        Alarm alarm = new Alarm(id, hour, minute, days, command, device);
+        alarm.time = alarm.next(System.currentTimeMillis());
+        alarms.add(alarm);
+        update();
+        return alarm;
+    }
+
+    void remove(int id) {
+        load();
+        for(int i = 0; i < alarms.size(); i++)
+            if(alarms.get(i).id == id)
+                alarms.remove(i--);
+        update();
+    }
+
+    void removeAll(String device) {
+        load();
+        for(int i = 0; i < alarms.size(); i++)
+            if(alarms.get(i).device.equals(device))
+                alarms.remove(i--);
+        update();
+    }
+
+    /**
+     * called by AlarmReceiver. One-time alarms are removed, recurring alarms advanced.
+     * @return all alarms due at now
+     */
+    List<Alarm> onFired(long now) {
+        load();
+        ArrayList<Alarm> due = new ArrayList<>();
+        for(int i = 0; i < alarms.size() && alarms.get(i).time <= now; i++) {
+            Alarm alarm = alarms.get(i);
+            due.add(alarm);
+            if(alarm.days == 0)
+                alarms.remove(i--);
+            else
+                alarm.time = alarm.next(Math.max(now, alarm.time));
+        }
+        update();
+        return due;
+    }
+
+    /**
+     * after boot or time change. Alarms missed by more than MAX_LATE are skipped
+     */
+    void reschedule() {
+        load();
+        long now = System.currentTimeMillis();
+        for(int i = 0; i < alarms.size(); i++) {
+            Alarm alarm = alarms.get(i);
+            if(alarm.time < now - MAX_LATE) {
+                if(alarm.days == 0)
+                    alarms.remove(i--);
+                else
+                    alarm.time = alarm.next(now);
+            } else if(alarm.time > now) {
+                alarm.time = alarm.next(now); // time zone or clock changed
+            }
+        }
+        update();
+    }
+
+    /**
+     * exact alarms need user consent on Android 12 without USE_EXACT_ALARM permission,
+     * without it alarms are inexact and might be late
+     */
+    boolean canScheduleExactAlarms() {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.S)
+            return true;
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        return alarmManager.canScheduleExactAlarms();
+    }
+
+    private void update() {
+        Collections.sort(alarms, (a, b) -> Long.compare(a.time, b.time));
+        save();
+        schedule();
+    }
+
+    private void schedule() {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        int flags = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? PendingIntent.FLAG_IMMUTABLE : 0;
+        Intent fireIntent = new Intent(context, AlarmReceiver.class).setAction(Constants.INTENT_ACTION_ALARM);
+        PendingIntent firePendingIntent = PendingIntent.getBroadcast(context, REQUEST_FIRE, fireIntent, flags | PendingIntent.FLAG_UPDATE_CURRENT);
+        Intent warmupIntent = new Intent(context, AlarmReceiver.class).setAction(Constants.INTENT_ACTION_WARMUP);
+        if(alarms.isEmpty()) {
+            alarmManager.cancel(firePendingIntent);
+            alarmManager.cancel(PendingIntent.getBroadcast(context, REQUEST_WARMUP, warmupIntent, flags | PendingIntent.FLAG_UPDATE_CURRENT));
+            return;
+        }
+        Alarm next = alarms.get(0);
+        warmupIntent.putExtra("device", next.device).putExtra("time", next.time);
+        PendingIntent warmupPendingIntent = PendingIntent.getBroadcast(context, REQUEST_WARMUP, warmupIntent, flags | PendingIntent.FLAG_UPDATE_CURRENT);
+        boolean exact = canScheduleExactAlarms();
+        // alarm clock alarms are not deferred by Doze and not rate limited like ...AllowWhileIdle alarms
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && exact) {
+            Intent showIntent = new Intent()
+                    .setClassName(context, Constants.INTENT_CLASS_MAIN_ACTIVITY)
+                    .setAction(Intent.ACTION_MAIN)
+                    .addCategory(Intent.CATEGORY_LAUNCHER);
+            PendingIntent showPendingIntent = PendingIntent.getActivity(context, 0, showIntent, flags);
+            alarmManager.setAlarmClock(new AlarmManager.AlarmClockInfo(next.time, showPendingIntent), firePendingIntent);
+        } else {
+            set(alarmManager, exact, next.time, firePendingIntent);
+        }
+        if(next.time - SerialSession.WARMUP_LEAD > System.currentTimeMillis())
+            set(alarmManager, exact, next.time - SerialSession.WARMUP_LEAD, warmupPendingIntent);
+        else
+            alarmManager.cancel(warmupPendingIntent);
+    }
+
+    private static void set(AlarmManager alarmManager, boolean exact, long time, PendingIntent pendingIntent) {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            if(exact)
+                alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, time, pendingIntent);
+            else
+                alarmManager.setAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, time, pendingIntent);
+        } else if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            alarmManager.setExact(AlarmManager.RTC_WAKEUP, time, pendingIntent);
+        } else {
+            alarmManager.set(AlarmManager.RTC_WAKEUP, time, pendingIntent);
+        }
+    }
+
+    private void load() {
+        alarms.clear();
+        try {
+            JSONArray index = new JSONArray(prefs.getString(KEY_INDEX, "[]"));
+            for(int i = 0; i < index.length(); i++) {
+                JSONObject o = index.getJSONObject(i);
+                Alarm alarm = new Alarm(o.getInt("id"), o.getInt("hour"), o.getInt("minute"), o.getInt("days"),
+                        o.getString("command"), o.getString("device"));
+                alarm.time = o.getLong("time");
+                alarms.add(alarm);
+            }
+        } catch (JSONException ignored) {
+            alarms.clear(); // corrupt index
+        }
+    }
+
+    private void save() {
+        JSONArray index = new JSONArray();
+        try {
+            for(Alarm alarm : alarms)
+                index.put(new JSONObject()
+                        .put("id", alarm.id)
+                        .put("hour", alarm.hour)
+                        .put("minute", alarm.minute)
+                        .put("days", alarm.days)
+                        .put("command", alarm.command)
+                        .put("device", alarm.device)
+                        .put("time", alarm.time));
+        } catch (JSONException e) {
+            throw new IllegalStateException(e); // only thrown for NaN and infinite numbers
+        }
+        prefs.edit().putString(KEY_INDEX, index.toString()).apply();
+    }
+}
@@ -16,8 +16,6 @@ import android.widget.Toast;
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 
-import java.io.IOException;
-
 public class AlarmScreenActivity extends AppCompatActivity implements ServiceConnection {
 
     private String command;
@@ -73,14 +71,9 @@ public class AlarmScreenActivity extends AppCompatActivity implements ServiceCon
 
     private void onDismiss() {
         if (isBound && service != null && command != null) {
-            try {
-                // ¡Enviamos el comando!
-                String msg = command + "\n";
-                service.write(msg.getBytes());
-                Toast.makeText(this, "¡Comando " + command + " enviado!", Toast.LENGTH_SHORT).show();
-            } catch (IOException e) {
-                Toast.makeText(this, "Error al enviar: " + e.getMessage(), Toast.LENGTH_SHORT).show();
-            }
+            // ¡Enviamos el comando a todos los dispositivos conectados!
+            int count = service.broadcastCommand(command).size();
+            Toast.makeText(this, "¡Comando " + command + " enviado a " + count + " dispositivos!", Toast.LENGTH_SHORT).show();
         } else {
             Toast.makeText(this, "Error: Servicio no conectado.", Toast.LENGTH_SHORT).show();
         }
@@ -1,41 +1,25 @@
 package de.kai_morich.simple_bluetooth_terminal;
 
 import android.Manifest;
-import android.annotation.SuppressLint;
 import android.app.AlertDialog;
-import android.bluetooth.BluetoothDevice;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Build;
+import android.widget.Toast;
 
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.fragment.app.Fragment;
 
+import java.util.Map;
+
 public class BluetoothUtil {
 
     interface PermissionGrantedCallback {
         void call();
     }
 
-    /**
-     * sort by name, then address. sort named devices first
-     */
-    @SuppressLint("MissingPermission")
-    static int compareTo(BluetoothDevice a, BluetoothDevice b) {
-        boolean aValid = a.getName()!=null && !a.getName().isEmpty();
-        boolean bValid = b.getName()!=null && !b.getName().isEmpty();
-        if(aValid && bValid) {
-            int ret = a.getName().compareTo(b.getName());
-            if (ret != 0) return ret;
-            return a.getAddress().compareTo(b.getAddress());
-        }
-        if(aValid) return -1;
-        if(bValid) return +1;
-        return a.getAddress().compareTo(b.getAddress());
-    }
-
     /**
      * Android 12 permission handling
      */
@@ -92,4 +76,36 @@ public class BluetoothUtil {
         }
     }
 
+    /**
+     * discovery needs BLUETOOTH_SCAN with Android 12, before location permission
+     */
+    static String[] getScanPermissions() {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.S)
+            return new String[]{Manifest.permission.BLUETOOTH_SCAN, Manifest.permission.BLUETOOTH_CONNECT};
+        return new String[]{Manifest.permission.ACCESS_FINE_LOCATION};
+    }
+
+    static boolean hasScanPermissions(Fragment fragment, ActivityResultLauncher<String[]> requestPermissionsLauncher) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.M)
+            return true;
+        for(String permission : getScanPermissions()) {
+            if(fragment.getActivity().checkSelfPermission(permission) != PackageManager.PERMISSION_GRANTED) {
+                requestPermissionsLauncher.launch(getScanPermissions());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static void onScanPermissionsResult(Fragment fragment, Map<String, Boolean> granted, PermissionGrantedCallback cb) {
+        if(!granted.containsValue(false)) {
+            cb.call();
+        } else if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            if(!fragment.shouldShowRequestPermissionRationale(Manifest.permission.BLUETOOTH_SCAN))
+                showSettingsDialog(fragment);
+        } else {
+            Toast.makeText(fragment.getActivity(), "location permission is required to scan for devices", Toast.LENGTH_LONG).show();
+        }
+    }
+
 }
@@ -0,0 +1,199 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * binary capture of all received and sent data, written to memory-mapped segment files.
+ *
+ * Records are copied into the mapping and left to the kernel for write back,
+ * there is no allocation and no fsync per record, so capture can stay enabled at full link rate.
+ * When a segment is full, the next one is mapped, the oldest is overwritten after maxSegments.
+ *
+ * segment: MAGIC (4) | VERSION (2) | reserved (2) | sequence (8) | record...
+ * record:  time (8) | direction (1) | length (4) | data (length)
+ * time is microseconds since epoch, multi-byte values big endian.
+ * A zero time marks the unused end of a segment.
+ */
+final class CaptureLog {
+
+    static final int MAGIC = 0x53425443; // "SBTC"
+    static final int VERSION = 1;
+    static final int SEGMENT_HEADER_SIZE = 16;
+    static final int RECORD_HEADER_SIZE = 13;
+    static final byte RX = 0;
+    static final byte TX = 1;
+
+    static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    static final int DEFAULT_MAX_SEGMENTS = 8;
+
+    interface RecordListener {
+        /**
+         * data is only valid during the call
+         */
+        void onRecord(long timeMicros, byte direction, byte[] data, int offset, int length);
+    }
+
+    private final File dir;
+    private final int segmentSize;
+    private final int maxSegments;
+    private long sequence;  // of the current segment
+    private MappedByteBuffer buffer;
+    private long baseMicros, baseNanos;
+    private boolean closed;
+
+    CaptureLog(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * continues after the newest existing segment in dir
+     */
+    CaptureLog(File dir, int segmentSize, int maxSegments) throws IOException {
+        if(segmentSize < SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE + 1 || maxSegments < 1)
+            throw new IllegalArgumentException("invalid size");
+        if(!dir.isDirectory() && !dir.mkdirs())
+            throw new FileNotFoundException(dir.getPath());
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        sequence = -1;
+        for(int i = 0; i < maxSegments; i++)
+            sequence = Math.max(sequence, readSequence(segmentFile(i)));
+        nextSegment();
+    }
+
+    File getDir() {
+        return dir;
+    }
+
+    File segmentFile(int index) {
+        return new File(dir, String.format("capture_%03d.bin", index));
+    }
+
+    /**
+     * @return segment files, oldest first
+     */
+    File[] getSegments() {
+        long[] sequences = new long[maxSegments];
+        int count = 0;
+        for(int i = 0; i < maxSegments; i++)
+            if((sequences[i] = readSequence(segmentFile(i))) >= 0)
+                count++;
+        File[] files = new File[count];
+        long last = -1;
+        for(int i = 0; i < count; i++) {
+            int oldest = -1;
+            for(int j = 0; j < maxSegments; j++)
+                if(sequences[j] > last && (oldest < 0 || sequences[j] < sequences[oldest]))
+                    oldest = j;
+            last = sequences[oldest];
+            files[i] = segmentFile(oldest);
+        }
+        return files;
+    }
+
+    /**
+     * called from read and writer thread. Data larger than a segment is split into several records.
+     * After an I/O error while mapping the next segment, capture stops silently.
+     */
+    synchronized void append(byte direction, byte[] data, int offset, int length) {
+        if(closed)
+            return;
+        long micros = baseMicros + (System.nanoTime() - baseNanos) / 1000;
+        while (length > 0) {
+            if(buffer.remaining() < RECORD_HEADER_SIZE + 1) {
+                try {
+                    nextSegment();
+                } catch (IOException e) {
+                    close();
+                    return;
+                }
+            }
+            int len = Math.min(length, buffer.remaining() - RECORD_HEADER_SIZE);
+            buffer.putLong(micros);
+            buffer.put(direction);
+            buffer.putInt(len);
+            buffer.put(data, offset, len);
+            offset += len;
+            length -= len;
+        }
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * the mapping is released by the garbage collector, dirty pages are still written back
+     */
+    synchronized void close() {
+        closed = true;
+        buffer = null;
+    }
+
+    private void nextSegment() throws IOException {
+        buffer = null;
+        sequence++;
+        File file = segmentFile((int) (sequence % maxSegments));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0); // zero filled, i.e. no records
+            raf.setLength(segmentSize);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        buffer.putInt(MAGIC);
+        buffer.putShort((short) VERSION);
+        buffer.putShort((short) 0);
+        buffer.putLong(sequence);
+        baseMicros = System.currentTimeMillis() * 1000;
+        baseNanos = System.nanoTime();
+    }
+
+    /**
+     * @return -1 if missing or no segment file
+     */
+    private static long readSequence(File file) {
+        if(!file.isFile())
+            return -1;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if(raf.length() < SEGMENT_HEADER_SIZE || raf.readInt() != MAGIC || raf.readShort() != VERSION)
+                return -1;
+            raf.readShort();
+            return raf.readLong();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * read all records of a segment file, e.g. for export
+     */
+    static void read(File file, RecordListener listener) throws IOException {
+        ByteBuffer buf;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        if(buf.remaining() < SEGMENT_HEADER_SIZE || buf.getInt() != MAGIC || buf.getShort() != VERSION)
+            throw new IOException("no capture file");
+        buf.position(SEGMENT_HEADER_SIZE);
+        byte[] data = new byte[0];
+        while (buf.remaining() >= RECORD_HEADER_SIZE) {
+            long time = buf.getLong();
+            if(time == 0)
+                break;
+            byte direction = buf.get();
+            int length = buf.getInt();
+            if(length < 0 || length > buf.remaining())
+                throw new IOException("corrupt record");
+            if(data.length < length)
+                data = new byte[length];
+            buf.get(data, 0, length);
+            listener.onRecord(time, direction, data, 0, length);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.util.ArrayDeque;
+
+/**
+ * recycled receive buffers, so the read loop does not allocate per read.
+ *
+ * Chunks are grouped in power-of-two size classes. SerialSocket obtains a chunk, reads
+ * directly into it and hands it down the listener chain. The last consumer calls release()
+ * to return it to its pool, see SerialSession.
+ */
+final class ChunkPool {
+
+    static final int MIN_SIZE = 64;
+    static final int MAX_SIZE = 8192;
+    private static final int MAX_POOLED_PER_CLASS = 64;
+
+    static final class Chunk {
+        final byte[] data;
+        int length;
+        long readTime; // System.nanoTime() of the socket read, 0 if unknown
+        private final ChunkPool pool;
+        private boolean released; // guarded by the free list of its size class
+
+        private Chunk(ChunkPool pool, int capacity) { this.pool = pool; data = new byte[capacity]; }
+
+        int capacity() { return data.length; }
+        void release() { pool.recycle(this); }
+    }
+
+    private final ArrayDeque<Chunk>[] free;
+
+    ChunkPool() {
+        @SuppressWarnings("unchecked") // generic array creation
+        ArrayDeque<Chunk>[] free = (ArrayDeque<Chunk>[]) new ArrayDeque<?>[sizeClass(MAX_SIZE) + 1];
+        this.free = free;
+        for(int i = 0; i < free.length; i++)
+            free[i] = new ArrayDeque<>(MAX_POOLED_PER_CLASS);
+    }
+
+    /**
+     * smallest power of two >= size, clamped to [MIN_SIZE, MAX_SIZE]
+     */
+    static int roundSize(int size) {
+        if(size <= MIN_SIZE) return MIN_SIZE;
+        if(size >= MAX_SIZE) return MAX_SIZE;
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+    private static int sizeClass(int roundedSize) {
+        return Integer.numberOfTrailingZeros(roundedSize) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    Chunk obtain(int size) {
+        int rounded = roundSize(size);
+        ArrayDeque<Chunk> list = free[sizeClass(rounded)];
+        Chunk chunk;
+        synchronized (list) {
+            chunk = list.pollLast();
+            if(chunk != null)
+                chunk.released = false;
+        }
+        if(chunk == null)
+            chunk = new Chunk(this, rounded);
+        chunk.length = 0;
+        chunk.readTime = 0;
+        return chunk;
+    }
+
+    /**
+     * a second release() is ignored, also for chunks dropped because the size class was full
+     */
+    private void recycle(Chunk chunk) {
+        ArrayDeque<Chunk> list = free[sizeClass(chunk.capacity())];
+        synchronized (list) {
+            if(chunk.released)
+                return;
+            chunk.released = true;
+            if(list.size() < MAX_POOLED_PER_CLASS)
+                list.addLast(chunk);
+        }
+    }
+
+    static void releaseAll(ArrayDeque<Chunk> chunks) {
+        for(Chunk chunk : chunks)
+            chunk.release();
+        chunks.clear();
+    }
+
+    /**
+     * read size that follows the observed burst size.
+     *
+     * Grows quickly when reads fill the whole buffer and shrinks slowly
+     * towards the average burst, so single short reads do not thrash it.
+     */
+    static final class ReadSizer {
+        private int size = 1024;
+        private int average = 1024;
+
+        int next() { return size; }
+
+        void update(int len) {
+            if(len >= size) {
+                size = Math.min(size * 2, MAX_SIZE);
+                average = size;
+                return;
+            }
+            average += (len - average) / 8;
+            int target = roundSize(average * 2);
+            if(target < size)
+                size = size / 2 >= target ? size / 2 : target;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * pipelined commands with sequence numbers and asynchronous acknowledgements.
+ *
+ * Up to WINDOW commands are in flight without waiting for the round trip, more are queued.
+ * A command completes when an ack with its sequence number is read, see onAck().
+ * Without ack within ACK_TIMEOUT the command is sent again with the same sequence number,
+ * so the device can ignore duplicates. After MAX_ATTEMPTS it fails with TimeoutException.
+ * Failed transmits, e.g. while reconnecting, also count as attempt.
+ *
+ * Sequence numbers are 8 bit to fit into FrameCodec frames. They start at a random value,
+ * so after an app restart a repeated command is not taken for a duplicate of the last one.
+ * Thread safe.
+ */
+final class CommandPipeline {
+
+    static final int WINDOW = 8;
+    static final long ACK_TIMEOUT = 2000;
+    static final int MAX_ATTEMPTS = 3;
+
+    interface Transmitter {
+        void transmit(String command, int sequence) throws IOException;
+    }
+
+    interface Timer {
+        void schedule(Runnable task, long delayMillis);
+    }
+
+    static final class Command extends FutureTask<Void> {
+        final String command;
+        int sequence = -1;
+        int attempts;
+        long sendTime;
+
+        Command(String command) {
+            super(() -> null);
+            this.command = command;
+        }
+
+        void complete() { set(null); }
+        void fail(Exception e) { setException(e); }
+    }
+
+    private final Transmitter transmitter;
+    private final Timer timer;
+    private final SerialMetrics metrics;
+    private final Command[] inFlight = new Command[256]; // by sequence
+    private final ArrayDeque<Command> waiting = new ArrayDeque<>();
+    private int inFlightCount;
+    private int nextSequence;
+
+    /**
+     * @param timer runs timeouts, e.g. Handler::postDelayed
+     * @param metrics can be null
+     */
+    CommandPipeline(Transmitter transmitter, Timer timer, SerialMetrics metrics) {
+        this.transmitter = transmitter;
+        this.timer = timer;
+        this.metrics = metrics;
+        nextSequence = new Random().nextInt(256);
+    }
+
+    /**
+     * @return completes when acknowledged
+     */
+    synchronized Future<Void> send(String command) {
+        Command c = new Command(command);
+        if(inFlightCount < WINDOW)
+            start(c);
+        else
+            waiting.add(c);
+        return c;
+    }
+
+    synchronized void onAck(int sequence) {
+        Command c = inFlight[sequence & 0xff];
+        if(c == null)
+            return; // duplicate ack after retry
+        if(metrics != null) {
+            metrics.commandsAcked.incrementAndGet();
+            metrics.ackMillis.record(System.currentTimeMillis() - c.sendTime);
+        }
+        finish(c);
+        c.complete();
+    }
+
+    /**
+     * fail all commands, e.g. on disconnect
+     */
+    synchronized void reset(Exception e) {
+        for(int i = 0; i < inFlight.length; i++) {
+            if(inFlight[i] != null) {
+                inFlight[i].fail(e);
+                inFlight[i] = null;
+            }
+        }
+        inFlightCount = 0;
+        Command c;
+        while ((c = waiting.poll()) != null)
+            c.fail(e);
+    }
+
+    synchronized int getInFlight() {
+        return inFlightCount;
+    }
+
+    /**
+     * @return sequence number of an ack line "ACK <sequence>", else -1
+     */
+    static int parseAck(byte[] data, int offset, int length) {
+        if(length < 5 || length > 7 || data[offset] != 'A' || data[offset + 1] != 'C' || data[offset + 2] != 'K' || data[offset + 3] != ' ')
+            return -1;
+        int sequence = 0;
+        for(int i = offset + 4; i < offset + length; i++) {
+            if(data[i] < '0' || data[i] > '9')
+                return -1;
+            sequence = sequence * 10 + data[i] - '0';
+        }
+        return sequence <= 0xff ? sequence : -1;
+    }
+
+    private void start(Command c) {
+        while (inFlight[nextSequence] != null)
+            nextSequence = (nextSequence + 1) & 0xff;
+        c.sequence = nextSequence;
+        nextSequence = (nextSequence + 1) & 0xff;
+        inFlight[c.sequence] = c;
+        inFlightCount++;
+        if(metrics != null)
+            metrics.commandsSent.incrementAndGet();
+        transmit(c);
+    }
+
+    private void transmit(Command c) {
+        int attempt = ++c.attempts;
+        c.sendTime = System.currentTimeMillis();
+        try {
+            transmitter.transmit(c.command, c.sequence);
+        } catch (IOException ignored) {
+            // retried after timeout
+        }
+        timer.schedule(() -> onTimeout(c, attempt), ACK_TIMEOUT);
+    }
+
+    private synchronized void onTimeout(Command c, int attempt) {
+        if(inFlight[c.sequence] != c || c.attempts != attempt)
+            return; // acknowledged or reset
+        if(c.attempts < MAX_ATTEMPTS) {
+            if(metrics != null)
+                metrics.commandRetries.incrementAndGet();
+            transmit(c);
+        } else {
+            if(metrics != null)
+                metrics.commandsFailed.incrementAndGet();
+            finish(c);
+            c.fail(new TimeoutException("no ack for '" + c.command + "' #" + c.sequence));
+        }
+    }
+
+    private void finish(Command c) {
+        inFlight[c.sequence] = null;
+        inFlightCount--;
+        Command next = waiting.poll();
+        if(next != null)
+            start(next);
+    }
+}
@@ -5,11 +5,15 @@ class Constants {
     // values have to be globally unique
     static final String INTENT_ACTION_DISCONNECT = BuildConfig.APPLICATION_ID + ".Disconnect";
     static final String INTENT_ACTION_SEND = BuildConfig.APPLICATION_ID + ".Send";
+    static final String INTENT_ACTION_WARMUP = BuildConfig.APPLICATION_ID + ".Warmup";
+    static final String INTENT_ACTION_ALARM = BuildConfig.APPLICATION_ID + ".Alarm";
     static final String NOTIFICATION_CHANNEL = BuildConfig.APPLICATION_ID + ".Channel";
+    static final String NOTIFICATION_CHANNEL_ALARM = BuildConfig.APPLICATION_ID + ".AlarmChannel";
     static final String INTENT_CLASS_MAIN_ACTIVITY = BuildConfig.APPLICATION_ID + ".MainActivity";
 
     // values have to be unique within each app
     static final int NOTIFY_MANAGER_START_FOREGROUND_SERVICE = 1001;
+    static final int NOTIFY_MANAGER_ALARM_NOT_SENT = 1002;
 
     private Constants() {}
 }
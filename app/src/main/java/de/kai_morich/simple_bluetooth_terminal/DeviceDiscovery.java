@@ -0,0 +1,213 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.core.content.ContextCompat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * discovery of unbonded classic devices, results are shown while they arrive.
+ *
+ * Results are indexed by address, so repeated ACTION_FOUND broadcasts update
+ * rssi and name of the existing result, and are kept sorted by signal strength.
+ * Inquiry rounds are repeated until the time budget is used, then discovery stops,
+ * as it slows down connects. Bonded devices are listed by DeviceRegistry instead.
+ *
+ * Requires BLUETOOTH_SCAN permission, below Android 12 location permission.
+ * Call in main thread.
+ */
+final class DeviceDiscovery {
+
+    interface Listener {
+        /**
+         * results or running state changed
+         */
+        void onDiscoveryChanged();
+    }
+
+    static final class Result {
+        final BluetoothDevice device;
+        final String address;
+        String name; // null if not resolved yet
+        int rssi;    // dBm
+
+        Result(BluetoothDevice device, String name, int rssi) {
+            this.device = device;
+            this.address = device.getAddress();
+            this.name = name;
+            this.rssi = rssi;
+        }
+
+        /**
+         * strongest first, then address
+         */
+        static int compare(Result a, Result b) {
+            if(a.rssi != b.rssi)
+                return b.rssi - a.rssi;
+            return a.address.compareTo(b.address);
+        }
+    }
+
+    static final long DEFAULT_DURATION = 12 * 1000;
+    private static final int UNKNOWN_RSSI = -127;
+
+    private final Context context;
+    private final BluetoothAdapter bluetoothAdapter;
+    private final Listener listener;
+    private final Handler mainLooper = new Handler(Looper.getMainLooper());
+    private final ArrayList<Result> results = new ArrayList<>(); // sorted by Result.compare
+    private final HashMap<String, Result> byAddress = new HashMap<>();
+    private final BroadcastReceiver receiver;
+    private final Runnable stopRunnable = this::stop;
+    private boolean running;
+    private long deadline; // SystemClock.elapsedRealtime()
+
+    DeviceDiscovery(Context context, BluetoothAdapter bluetoothAdapter, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.bluetoothAdapter = bluetoothAdapter;
+        this.listener = listener;
+        receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                onBroadcast(intent);
+            }
+        };
+    }
+
+    /**
+     * sorted, do not modify
+     */
+    List<Result> getResults() {
+        return results;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * clear results and discover for duration millis
+     * @return false if discovery could not be started, e.g. bluetooth disabled
+     */
+    @SuppressLint("MissingPermission")
+    boolean start(long duration) {
+        stop();
+        results.clear();
+        byAddress.clear();
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(BluetoothDevice.ACTION_FOUND);
+        filter.addAction(BluetoothDevice.ACTION_NAME_CHANGED);
+        filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+        ContextCompat.registerReceiver(context, receiver, filter, ContextCompat.RECEIVER_NOT_EXPORTED);
+        running = true;
+        try {
+            if(bluetoothAdapter.isDiscovering())
+                bluetoothAdapter.cancelDiscovery();
+            if(!bluetoothAdapter.startDiscovery()) {
+                stop();
+                return false;
+            }
+        } catch (SecurityException e) {
+            stop();
+            return false;
+        }
+        deadline = SystemClock.elapsedRealtime() + duration;
+        mainLooper.postDelayed(stopRunnable, duration);
+        listener.onDiscoveryChanged();
+        return true;
+    }
+
+    /**
+     * results are kept
+     */
+    @SuppressLint("MissingPermission")
+    void stop() {
+        if(!running)
+            return;
+        running = false;
+        mainLooper.removeCallbacks(stopRunnable);
+        try {
+            context.unregisterReceiver(receiver);
+        } catch (Exception ignored) {
+        }
+        try {
+            bluetoothAdapter.cancelDiscovery();
+        } catch (SecurityException ignored) {
+        }
+        listener.onDiscoveryChanged();
+    }
+
+    @SuppressLint("MissingPermission")
+    private void onBroadcast(Intent intent) {
+        if(!running)
+            return;
+        String action = intent.getAction();
+        if(BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
+            boolean restarted = false;
+            try {
+                // an inquiry round takes about 12 seconds, repeat for rssi updates
+                if(SystemClock.elapsedRealtime() < deadline)
+                    restarted = bluetoothAdapter.startDiscovery();
+            } catch (SecurityException ignored) {
+            }
+            if(!restarted)
+                stop();
+            return;
+        }
+        BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+        if(device == null)
+            return;
+        Result result = byAddress.get(device.getAddress());
+        if(BluetoothDevice.ACTION_FOUND.equals(action)) {
+            int rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) UNKNOWN_RSSI);
+            String name = intent.getStringExtra(BluetoothDevice.EXTRA_NAME);
+            if(result == null) {
+                try {
+                    if(device.getType() == BluetoothDevice.DEVICE_TYPE_LE || device.getBondState() == BluetoothDevice.BOND_BONDED)
+                        return;
+                } catch (SecurityException ignored) {
+                    return;
+                }
+                result = new Result(device, name, rssi);
+                byAddress.put(result.address, result);
+            } else {
+                if(name != null)
+                    result.name = name;
+                if(rssi == result.rssi) {
+                    listener.onDiscoveryChanged();
+                    return;
+                }
+                results.remove(Collections.binarySearch(results, result, Result::compare));
+                result.rssi = rssi;
+            }
+            int pos = Collections.binarySearch(results, result, Result::compare);
+            results.add(-pos - 1, result);
+            listener.onDiscoveryChanged();
+        } else if(BluetoothDevice.ACTION_NAME_CHANGED.equals(action)) {
+            if(result != null) {
+                result.name = intent.getStringExtra(BluetoothDevice.EXTRA_NAME);
+                listener.onDiscoveryChanged();
+            }
+        } else if(BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
+            if(result != null && intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.BOND_NONE) == BluetoothDevice.BOND_BONDED) {
+                results.remove(Collections.binarySearch(results, result, Result::compare));
+                byAddress.remove(result.address);
+                listener.onDiscoveryChanged(); // now listed by DeviceRegistry
+            }
+        }
+    }
+}
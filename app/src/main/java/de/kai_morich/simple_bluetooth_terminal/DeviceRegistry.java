@@ -0,0 +1,287 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.core.content.ContextCompat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * cache of bonded classic devices, shared by all DevicesFragment instances of the process.
+ *
+ * Name and type are read once per device in a background thread, the list is kept sorted
+ * with these values, so showing and sorting it needs no binder calls. While listeners are
+ * registered, bond state and name change broadcasts update single devices. A full refresh
+ * of the bonded devices runs in background, the differences are applied to the list in place.
+ *
+ * Call in main thread.
+ */
+final class DeviceRegistry {
+
+    interface Listener {
+        /**
+         * the list returned by getDevices() changed
+         */
+        void onDevicesChanged();
+    }
+
+    static final class Device {
+        final BluetoothDevice device;
+        final String address;
+        final String name; // null or empty if unknown
+        final int type;    // BluetoothDevice.DEVICE_TYPE_...
+        private final boolean named;
+
+        Device(BluetoothDevice device, String name, int type) {
+            this.device = device;
+            this.address = device.getAddress();
+            this.name = name;
+            this.type = type;
+            named = name != null && !name.isEmpty();
+        }
+
+        boolean sameAs(Device other) {
+            return address.equals(other.address) && type == other.type
+                    && (name == null ? other.name == null : name.equals(other.name));
+        }
+
+        /**
+         * sort by name, then address. sort named devices first
+         */
+        static int compare(Device a, Device b) {
+            if(a.named && b.named) {
+                int ret = a.name.compareTo(b.name);
+                if (ret != 0) return ret;
+                return a.address.compareTo(b.address);
+            }
+            if(a.named) return -1;
+            if(b.named) return +1;
+            return a.address.compareTo(b.address);
+        }
+    }
+
+    private static DeviceRegistry instance;
+
+    private final Context context;
+    private final BluetoothAdapter bluetoothAdapter;
+    private final Handler mainLooper = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    private final ArrayList<Device> devices = new ArrayList<>(); // sorted by Device.compare
+    private final HashMap<String, Device> byAddress = new HashMap<>();
+    private final ArrayList<Listener> listeners = new ArrayList<>();
+    private final BroadcastReceiver receiver;
+    private boolean refreshing, refreshAgain;
+
+    static DeviceRegistry get(Context context) {
+        if(instance == null)
+            instance = new DeviceRegistry(context.getApplicationContext());
+        return instance;
+    }
+
+    private DeviceRegistry(Context context) {
+        this.context = context;
+        bluetoothAdapter = context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH)
+                ? BluetoothAdapter.getDefaultAdapter() : null;
+        receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                onBroadcast(intent);
+            }
+        };
+    }
+
+    /**
+     * sorted, do not modify. Changes are announced with Listener.onDevicesChanged()
+     */
+    List<Device> getDevices() {
+        return devices;
+    }
+
+    /**
+     * the first listener starts broadcast updates. Each call starts a refresh,
+     * until then the cached list is valid
+     */
+    void addListener(Listener listener) {
+        if(listeners.isEmpty()) {
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+            filter.addAction(BluetoothDevice.ACTION_NAME_CHANGED);
+            filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
+            ContextCompat.registerReceiver(context, receiver, filter, ContextCompat.RECEIVER_NOT_EXPORTED);
+        }
+        if(!listeners.contains(listener))
+            listeners.add(listener);
+        refresh();
+    }
+
+    void removeListener(Listener listener) {
+        if(listeners.remove(listener) && listeners.isEmpty()) {
+            try {
+                context.unregisterReceiver(receiver);
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    /**
+     * read bonded devices in background and apply differences. Without permission
+     * or with bluetooth disabled the list is emptied
+     */
+    void refresh() {
+        if(refreshing) {
+            refreshAgain = true; // a broadcast could have overtaken the running refresh
+            return;
+        }
+        refreshing = true;
+        executor.execute(() -> {
+            ArrayList<Device> bonded = readBondedDevices();
+            mainLooper.post(() -> {
+                refreshing = false;
+                apply(bonded);
+                if(refreshAgain) {
+                    refreshAgain = false;
+                    refresh();
+                }
+            });
+        });
+    }
+
+    /**
+     * in background thread, with one name and type request per device
+     */
+    @SuppressLint("MissingPermission")
+    private ArrayList<Device> readBondedDevices() {
+        ArrayList<Device> bonded = new ArrayList<>();
+        if(bluetoothAdapter == null || !hasPermission())
+            return bonded;
+        try {
+            for (BluetoothDevice device : bluetoothAdapter.getBondedDevices()) {
+                int type = device.getType();
+                if (type != BluetoothDevice.DEVICE_TYPE_LE)
+                    bonded.add(new Device(device, device.getName(), type));
+            }
+        } catch (SecurityException ignored) {
+            // permission revoked meanwhile
+        }
+        return bonded;
+    }
+
+    private boolean hasPermission() {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.S
+                || context.checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    private void apply(ArrayList<Device> bonded) {
+        HashMap<String, Device> keep = new HashMap<>();
+        for(Device device : bonded)
+            keep.put(device.address, device);
+        boolean changed = false;
+        for(int i = devices.size() - 1; i >= 0; i--) {
+            Device device = devices.get(i);
+            if(!keep.containsKey(device.address)) {
+                devices.remove(i);
+                byAddress.remove(device.address);
+                changed = true;
+            }
+        }
+        for(Device device : bonded)
+            changed |= put(device);
+        if(changed)
+            notifyListeners();
+    }
+
+    /**
+     * add or update, keeps the list sorted
+     * @return false if unchanged
+     */
+    private boolean put(Device device) {
+        Device old = byAddress.get(device.address);
+        if(old != null) {
+            if(old.sameAs(device))
+                return false;
+            devices.remove(Collections.binarySearch(devices, old, Device::compare));
+        }
+        byAddress.put(device.address, device);
+        int pos = Collections.binarySearch(devices, device, Device::compare);
+        devices.add(-pos - 1, device);
+        return true;
+    }
+
+    private boolean remove(String address) {
+        Device old = byAddress.remove(address);
+        if(old == null)
+            return false;
+        devices.remove(Collections.binarySearch(devices, old, Device::compare));
+        return true;
+    }
+
+    private void onBroadcast(Intent intent) {
+        String action = intent.getAction();
+        if(BluetoothAdapter.ACTION_STATE_CHANGED.equals(action)) {
+            int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
+            if(state == BluetoothAdapter.STATE_ON || state == BluetoothAdapter.STATE_OFF)
+                refresh();
+            return;
+        }
+        BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+        if(device == null)
+            return;
+        if(refreshing)
+            refreshAgain = true; // result of the running refresh might be older
+        if(BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
+            int state = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.BOND_NONE);
+            if(state == BluetoothDevice.BOND_BONDED)
+                refreshDevice(device);
+            else if(state == BluetoothDevice.BOND_NONE && remove(device.getAddress()))
+                notifyListeners();
+        } else if(BluetoothDevice.ACTION_NAME_CHANGED.equals(action)) {
+            Device old = byAddress.get(device.getAddress());
+            if(old != null && put(new Device(device, intent.getStringExtra(BluetoothDevice.EXTRA_NAME), old.type)))
+                notifyListeners();
+        }
+    }
+
+    /**
+     * new bond, name and type are read in background
+     */
+    @SuppressLint("MissingPermission")
+    private void refreshDevice(BluetoothDevice device) {
+        executor.execute(() -> {
+            Device entry;
+            try {
+                int type = device.getType();
+                if(type == BluetoothDevice.DEVICE_TYPE_LE)
+                    return;
+                entry = new Device(device, device.getName(), type);
+            } catch (SecurityException ignored) {
+                return;
+            }
+            mainLooper.post(() -> {
+                if(put(entry))
+                    notifyListeners();
+            });
+        });
+    }
+
+    private void notifyListeners() {
+        for(Listener listener : new ArrayList<>(listeners))
+            listener.onDevicesChanged();
+    }
+}
@@ -1,9 +1,7 @@
 package de.kai_morich.simple_bluetooth_terminal;
 
 import android.Manifest;
-import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Build;
@@ -13,9 +11,10 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.ListView;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
@@ -23,15 +22,20 @@ import androidx.annotation.NonNull;
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.ListFragment;
 
-import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 
-public class DevicesFragment extends ListFragment {
+public class DevicesFragment extends ListFragment implements DeviceRegistry.Listener, DeviceDiscovery.Listener {
 
     private BluetoothAdapter bluetoothAdapter;
-    private final ArrayList<BluetoothDevice> listItems = new ArrayList<>();
-    private ArrayAdapter<BluetoothDevice> listAdapter;
+    private DeviceRegistry registry;
+    private DeviceDiscovery discovery;
+    private List<DeviceRegistry.Device> listItems;
+    private List<DeviceDiscovery.Result> foundItems; // shown after listItems
+    private BaseAdapter listAdapter;
     ActivityResultLauncher<String> requestBluetoothPermissionLauncherForRefresh;
+    ActivityResultLauncher<String[]> requestScanPermissionsLauncher;
     private Menu menu;
     private boolean permissionMissing;
 
@@ -41,24 +45,56 @@ public class DevicesFragment extends ListFragment {
         setHasOptionsMenu(true);
         if(getActivity().getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH))
             bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-        listAdapter = new ArrayAdapter<BluetoothDevice>(getActivity(), 0, listItems) {
-            @NonNull
+        // cached bonded devices, shown immediately and updated in place
+        registry = DeviceRegistry.get(getActivity());
+        listItems = registry.getDevices();
+        if(bluetoothAdapter != null) {
+            discovery = new DeviceDiscovery(getActivity(), bluetoothAdapter, this);
+            foundItems = discovery.getResults();
+        } else {
+            foundItems = Collections.emptyList();
+        }
+        listAdapter = new BaseAdapter() {
+            @Override
+            public int getCount() {
+                return listItems.size() + foundItems.size();
+            }
+
+            @Override
+            public Object getItem(int position) {
+                return position < listItems.size() ? listItems.get(position) : foundItems.get(position - listItems.size());
+            }
+
             @Override
-            public View getView(int position, View view, @NonNull ViewGroup parent) {
-                BluetoothDevice device = listItems.get(position);
+            public long getItemId(int position) {
+                return position;
+            }
+
+            @Override
+            public View getView(int position, View view, ViewGroup parent) {
                 if (view == null)
                     view = getActivity().getLayoutInflater().inflate(R.layout.device_list_item, parent, false);
                 TextView text1 = view.findViewById(R.id.text1);
                 TextView text2 = view.findViewById(R.id.text2);
-                @SuppressLint("MissingPermission") String deviceName = device.getName();
-                text1.setText(deviceName);
-                text2.setText(device.getAddress());
+                Object item = getItem(position);
+                if(item instanceof DeviceRegistry.Device) {
+                    DeviceRegistry.Device device = (DeviceRegistry.Device) item;
+                    text1.setText(device.name);
+                    text2.setText(device.address);
+                } else {
+                    DeviceDiscovery.Result result = (DeviceDiscovery.Result) item;
+                    text1.setText(result.name);
+                    text2.setText(String.format(Locale.US, "%s   %d dBm", result.address, result.rssi));
+                }
                 return view;
             }
         };
         requestBluetoothPermissionLauncherForRefresh = registerForActivityResult(
                 new ActivityResultContracts.RequestPermission(),
                 granted -> BluetoothUtil.onPermissionsResult(this, granted, this::refresh));
+        requestScanPermissionsLauncher = registerForActivityResult(
+                new ActivityResultContracts.RequestMultiplePermissions(),
+                granted -> BluetoothUtil.onScanPermissionsResult(this, granted, this::startDiscovery));
     }
 
     @Override
@@ -78,8 +114,11 @@ public class DevicesFragment extends ListFragment {
         inflater.inflate(R.menu.menu_devices, menu);
         if(permissionMissing)
             menu.findItem(R.id.bt_refresh).setVisible(true);
-        if(bluetoothAdapter == null)
+        if(bluetoothAdapter == null) {
             menu.findItem(R.id.bt_settings).setEnabled(false);
+            menu.findItem(R.id.bt_scan).setVisible(false);
+        }
+        updateScanItem();
     }
 
     @Override
@@ -88,6 +127,26 @@ public class DevicesFragment extends ListFragment {
         refresh();
     }
 
+    @Override
+    public void onPause() {
+        registry.removeListener(this);
+        if(discovery != null)
+            discovery.stop();
+        super.onPause();
+    }
+
+    @Override
+    public void onDevicesChanged() {
+        listAdapter.notifyDataSetChanged();
+    }
+
+    @Override
+    public void onDiscoveryChanged() {
+        updateScanItem();
+        updateEmptyText();
+        listAdapter.notifyDataSetChanged();
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         int id = item.getItemId();
@@ -100,43 +159,69 @@ public class DevicesFragment extends ListFragment {
             if(BluetoothUtil.hasPermissions(this, requestBluetoothPermissionLauncherForRefresh))
                 refresh();
             return true;
+        } else if (id == R.id.bt_scan) {
+            if(discovery.isRunning())
+                discovery.stop();
+            else if(BluetoothUtil.hasScanPermissions(this, requestScanPermissionsLauncher))
+                startDiscovery();
+            return true;
         } else {
             return super.onOptionsItemSelected(item);
         }
     }
 
-    @SuppressLint("MissingPermission")
+    /**
+     * shows the cached devices, the registry refreshes them in background
+     */
     void refresh() {
-        listItems.clear();
         if(bluetoothAdapter != null) {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
                 permissionMissing = getActivity().checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED;
                 if(menu != null && menu.findItem(R.id.bt_refresh) != null)
                     menu.findItem(R.id.bt_refresh).setVisible(permissionMissing);
             }
-            if(!permissionMissing) {
-                for (BluetoothDevice device : bluetoothAdapter.getBondedDevices())
-                    if (device.getType() != BluetoothDevice.DEVICE_TYPE_LE)
-                        listItems.add(device);
-                Collections.sort(listItems, BluetoothUtil::compareTo);
-            }
+            registry.addListener(this);
         }
+        updateEmptyText();
+        listAdapter.notifyDataSetChanged();
+    }
+
+    private void updateEmptyText() {
         if(bluetoothAdapter == null)
             setEmptyText("<bluetooth not supported>");
         else if(!bluetoothAdapter.isEnabled())
             setEmptyText("<bluetooth is disabled>");
         else if(permissionMissing)
             setEmptyText("<permission missing, use REFRESH>");
+        else if(discovery.isRunning())
+            setEmptyText("<scanning...>");
         else
             setEmptyText("<no bluetooth devices found>");
-        listAdapter.notifyDataSetChanged();
+    }
+
+    private void updateScanItem() {
+        if(menu != null && discovery != null && menu.findItem(R.id.bt_scan) != null)
+            menu.findItem(R.id.bt_scan).setTitle(discovery.isRunning() ? "STOP" : "SCAN");
+    }
+
+    /**
+     * unbonded devices in range are added below the bonded devices, strongest first
+     */
+    private void startDiscovery() {
+        if(!discovery.start(DeviceDiscovery.DEFAULT_DURATION))
+            Toast.makeText(getActivity(), bluetoothAdapter.isEnabled() ? "scan failed" : "bluetooth is disabled", Toast.LENGTH_SHORT).show();
     }
 
     @Override
     public void onListItemClick(@NonNull ListView l, @NonNull View v, int position, long id) {
-        BluetoothDevice device = listItems.get(position-1);
+        Object item = listAdapter.getItem(position-1);
+        String address = item instanceof DeviceRegistry.Device
+                ? ((DeviceRegistry.Device) item).address
+                : ((DeviceDiscovery.Result) item).address;
+        if(discovery != null)
+            discovery.stop(); // discovery slows down connect
         Bundle args = new Bundle();
-        args.putString("device", device.getAddress());
+        args.putString("device", address);
         Fragment fragment = new TerminalFragment();
         fragment.setArguments(args);
         getParentFragmentManager().beginTransaction().replace(R.id.fragment, fragment, "terminal").addToBackStack(null).commit();
@@ -0,0 +1,213 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * bounds read data waiting for the UI, between the SerialSocket thread and ReadCoalescer.
+ *
+ * Bytes passed to the UI queue and not yet drained are counted. Above the high watermark
+ * the overflow policy applies until the UI has drained the queue down to the low watermark:
+ *
+ * BLOCK: the read thread waits, so the socket is not read and RFCOMM flow control
+ *        stops the device. Nothing is lost, the device has to buffer or drop.
+ * DROP_OLDEST: new data is held back, and of the held back data the oldest is dropped,
+ *        so at most high - low bytes are kept. Data already in the UI queue is delivered.
+ * COLLAPSE: new data is dropped and later replaced by one marker chunk with the amount.
+ *
+ * Held back data and the marker are passed on by the next offer() once the UI queue is below
+ * the low watermark, or by onDrained() when it is empty, e.g. when the device paused sending.
+ *
+ * offer() must only be called from one thread, onDrained() from the ReadCoalescer consumer.
+ */
+final class FlowControl {
+
+    enum Policy {BLOCK, DROP_OLDEST, COLLAPSE}
+
+    interface Sink {
+        void add(ChunkPool.Chunk chunk);
+    }
+
+    static final int DEFAULT_HIGH_WATERMARK = 1024 * 1024;
+    static final int DEFAULT_LOW_WATERMARK = 256 * 1024;
+    private static final long BLOCK_PARK_NANOS = 10_000_000; // recheck, if unpark was missed
+
+    private final Sink sink;
+    private final ChunkPool markerPool = new ChunkPool();
+    private final SerialMetrics metrics;
+    private final AtomicLong queued = new AtomicLong(); // in sink, not yet drained
+    private volatile Policy policy = Policy.BLOCK;
+    private volatile int highWatermark = DEFAULT_HIGH_WATERMARK;
+    private volatile int lowWatermark = DEFAULT_LOW_WATERMARK;
+    private volatile Thread blocked;
+    private volatile int resets;
+
+    // held back data, guarded by this
+    private volatile boolean overflow;
+    private final ArrayDeque<ChunkPool.Chunk> held = new ArrayDeque<>();
+    private final ArrayDeque<ChunkPool.Chunk> flush = new ArrayDeque<>();
+    private long heldBytes;
+    private long collapsedBytes;
+
+    /**
+     * @param sink e.g. ReadCoalescer::add
+     * @param metrics can be null
+     */
+    FlowControl(Sink sink, SerialMetrics metrics) {
+        this.sink = sink;
+        this.metrics = metrics;
+    }
+
+    /**
+     * takes effect with the next offer()
+     */
+    void setPolicy(Policy policy, int lowWatermark, int highWatermark) {
+        if(lowWatermark < 0 || lowWatermark > highWatermark)
+            throw new IllegalArgumentException("invalid watermarks");
+        this.policy = policy;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+    }
+
+    Policy getPolicy() {
+        return policy;
+    }
+
+    void offer(ChunkPool.Chunk chunk) {
+        if(!overflow && queued.get() + chunk.length <= highWatermark) {
+            pass(chunk);
+            return;
+        }
+        switch (policy) {
+            case BLOCK:
+                block();
+                pass(chunk);
+                break;
+            case DROP_OLDEST:
+            case COLLAPSE:
+                synchronized (this) {
+                    if(queued.get() <= lowWatermark) { // drained meanwhile
+                        if(overflow) {
+                            endOverflow(flush);
+                            for(ChunkPool.Chunk h : flush)
+                                pass(h);
+                            flush.clear();
+                        }
+                        pass(chunk);
+                        return;
+                    }
+                    overflow = true;
+                    if(policy == Policy.COLLAPSE)
+                        collapse(chunk);
+                    else
+                        hold(chunk);
+                }
+                break;
+        }
+    }
+
+    /**
+     * guarded by this, move held back data or the marker to chunks
+     */
+    private void endOverflow(ArrayDeque<ChunkPool.Chunk> chunks) {
+        chunks.addAll(held);
+        held.clear();
+        heldBytes = 0;
+        if(collapsedBytes > 0) {
+            chunks.add(marker(collapsedBytes));
+            if(metrics != null)
+                metrics.flowCollapses.incrementAndGet();
+            collapsedBytes = 0;
+        }
+        overflow = false;
+    }
+
+    private void pass(ChunkPool.Chunk chunk) {
+        long bytes = queued.addAndGet(chunk.length);
+        if(metrics != null)
+            metrics.flowQueuedBytes.set(bytes);
+        sink.add(chunk);
+    }
+
+    private void block() {
+        long start = System.nanoTime();
+        int resets = this.resets;
+        blocked = Thread.currentThread();
+        while (queued.get() > lowWatermark && resets == this.resets)
+            LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+        blocked = null;
+        if(metrics != null) {
+            metrics.flowBlocks.incrementAndGet();
+            metrics.flowBlockedMillis.record((System.nanoTime() - start) / 1000000);
+        }
+    }
+
+    private void hold(ChunkPool.Chunk chunk) {
+        held.add(chunk);
+        heldBytes += chunk.length;
+        while (heldBytes > highWatermark - lowWatermark && held.size() > 1) {
+            ChunkPool.Chunk dropped = held.poll();
+            heldBytes -= dropped.length;
+            if(metrics != null) {
+                metrics.flowDroppedChunks.incrementAndGet();
+                metrics.flowDroppedBytes.addAndGet(dropped.length);
+            }
+            dropped.release();
+        }
+    }
+
+    private void collapse(ChunkPool.Chunk chunk) {
+        collapsedBytes += chunk.length;
+        if(metrics != null)
+            metrics.flowCollapsedBytes.addAndGet(chunk.length);
+        chunk.release();
+    }
+
+    /**
+     * call with chunks drained from the sink, before they are consumed.
+     * When the UI queue is drained, held back data or the collapse marker is appended to chunks.
+     */
+    void onDrained(ArrayDeque<ChunkPool.Chunk> chunks) {
+        long bytes = 0;
+        for(ChunkPool.Chunk chunk : chunks)
+            bytes += chunk.length;
+        long left = queued.addAndGet(-bytes);
+        if(metrics != null)
+            metrics.flowQueuedBytes.set(left);
+        Thread blocked = this.blocked;
+        if(blocked != null && left <= lowWatermark)
+            LockSupport.unpark(blocked);
+        if(overflow && left == 0) {
+            synchronized (this) {
+                if(overflow && queued.get() == 0) // sink empty, held back data is next in order
+                    endOverflow(chunks);
+            }
+        }
+    }
+
+    private ChunkPool.Chunk marker(long bytes) {
+        byte[] text = String.format(Locale.US, "[%d bytes skipped]", bytes).getBytes(Charset.forName("UTF-8"));
+        ChunkPool.Chunk chunk = markerPool.obtain(text.length);
+        System.arraycopy(text, 0, chunk.data, 0, text.length);
+        chunk.length = text.length;
+        return chunk;
+    }
+
+    /**
+     * drop held back data and wake up a blocked offer(), e.g. on disconnect.
+     * Data already passed to the sink is still counted until drained.
+     */
+    synchronized void reset() {
+        ChunkPool.releaseAll(held);
+        heldBytes = 0;
+        collapsedBytes = 0;
+        overflow = false;
+        resets++;
+        Thread blocked = this.blocked;
+        if(blocked != null)
+            LockSupport.unpark(blocked);
+    }
+}
@@ -0,0 +1,171 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.nio.charset.Charset;
+
+/**
+ * optional binary command framing, the line based text protocol stays the default.
+ *
+ * frame: SYNC | length (2) | opcode | sequence | payload (length) | crc (2)
+ * multi-byte values big endian, crc is CRC-16/CCITT-FALSE over length..payload
+ */
+final class FrameCodec {
+
+    static final int SYNC = 0xA5;
+    static final int HEADER_SIZE = 5;
+    static final int CRC_SIZE = 2;
+    static final int MAX_PAYLOAD = 1024;
+
+    static final int OP_TEXT      = 0x01; // payload: command or message as text
+    static final int OP_START     = 0x10; // payload: minutes (2)
+    static final int OP_STOP      = 0x11;
+    static final int OP_ACK       = 0x20; // sequence of the acknowledged frame
+    static final int OP_TELEMETRY = 0x30;
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final short[] CRC_TABLE = new short[256];
+
+    static {
+        for(int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for(int bit = 0; bit < 8; bit++)
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            CRC_TABLE[i] = (short) crc;
+        }
+    }
+
+    interface FrameListener {
+        /**
+         * payload is only valid during the call
+         */
+        void onFrame(int opcode, int sequence, byte[] payload, int offset, int length);
+    }
+
+    static int crc16(byte[] data, int offset, int length) {
+        int crc = 0xffff;
+        for(int i = offset; i < offset + length; i++)
+            crc = ((crc << 8) ^ CRC_TABLE[((crc >>> 8) ^ data[i]) & 0xff]) & 0xffff;
+        return crc;
+    }
+
+    /**
+     * @return frame size written to out
+     */
+    static int encode(int opcode, int sequence, byte[] payload, int offset, int length, byte[] out, int outOffset) {
+        if(length > MAX_PAYLOAD)
+            throw new IllegalArgumentException("payload too large");
+        int pos = outOffset;
+        out[pos++] = (byte) SYNC;
+        out[pos++] = (byte) (length >>> 8);
+        out[pos++] = (byte) length;
+        out[pos++] = (byte) opcode;
+        out[pos++] = (byte) sequence;
+        System.arraycopy(payload, offset, out, pos, length);
+        pos += length;
+        int crc = crc16(out, outOffset + 1, HEADER_SIZE - 1 + length);
+        out[pos++] = (byte) (crc >>> 8);
+        out[pos++] = (byte) crc;
+        return pos - outOffset;
+    }
+
+    static byte[] encode(int opcode, int sequence, byte[] payload) {
+        byte[] frame = new byte[HEADER_SIZE + payload.length + CRC_SIZE];
+        encode(opcode, sequence, payload, 0, payload.length, frame, 0);
+        return frame;
+    }
+
+    /**
+     * text command as used by TerminalFragment and AlarmReceiver, e.g. "START 5", "STOP"
+     */
+    static byte[] encodeCommand(String command, int sequence) {
+        String[] parts = command.trim().split(" ");
+        if(parts.length == 2 && parts[0].equals("START")) {
+            try {
+                int minutes = Integer.parseInt(parts[1]);
+                if(minutes >= 0 && minutes <= 0xffff)
+                    return encode(OP_START, sequence, new byte[]{(byte) (minutes >>> 8), (byte) minutes});
+            } catch (NumberFormatException ignored) {
+            }
+        } else if(parts.length == 1 && parts[0].equals("STOP")) {
+            return encode(OP_STOP, sequence, new byte[0]);
+        }
+        return encode(OP_TEXT, sequence, command.getBytes(CHARSET));
+    }
+
+    /**
+     * inverse of encodeCommand()
+     */
+    static String decodeCommand(int opcode, byte[] payload, int offset, int length) {
+        switch (opcode) {
+            case OP_START: return length == 2 ? "START " + (((payload[offset] & 0xff) << 8) | (payload[offset + 1] & 0xff)) : null;
+            case OP_STOP:  return "STOP";
+            case OP_TEXT:  return new String(payload, offset, length, CHARSET);
+            default:       return null;
+        }
+    }
+
+    /**
+     * streaming decoder with fixed buffer. On crc error it resynchronizes at the next SYNC byte.
+     * Not thread safe.
+     */
+    static final class Decoder {
+        private final byte[] frame = new byte[HEADER_SIZE + MAX_PAYLOAD + CRC_SIZE];
+        private int length; // bytes in frame
+        private int crcErrors;
+
+        void reset() {
+            length = 0;
+        }
+
+        int getCrcErrors() {
+            return crcErrors;
+        }
+
+        void feed(byte[] data, int offset, int count, FrameListener listener) {
+            for(int pos = offset; pos < offset + count; pos++) {
+                if(length == 0 && (data[pos] & 0xff) != SYNC)
+                    continue; // skip noise between frames
+                frame[length++] = data[pos];
+                parse(listener);
+            }
+        }
+
+        private void parse(FrameListener listener) {
+            while (length >= HEADER_SIZE) {
+                if((frame[0] & 0xff) != SYNC) {
+                    resync();
+                    continue;
+                }
+                int payloadLength = ((frame[1] & 0xff) << 8) | (frame[2] & 0xff);
+                if(payloadLength > MAX_PAYLOAD) {
+                    resync();
+                    continue;
+                }
+                int size = HEADER_SIZE + payloadLength + CRC_SIZE;
+                if(length < size)
+                    return;
+                int crc = ((frame[size - 2] & 0xff) << 8) | (frame[size - 1] & 0xff);
+                if(crc != crc16(frame, 1, HEADER_SIZE - 1 + payloadLength)) {
+                    crcErrors++;
+                    resync();
+                    continue;
+                }
+                listener.onFrame(frame[3] & 0xff, frame[4] & 0xff, frame, HEADER_SIZE, payloadLength);
+                System.arraycopy(frame, size, frame, 0, length - size); // only after resync
+                length -= size;
+            }
+        }
+
+        /**
+         * drop the first byte and continue at the next SYNC byte in the buffer
+         */
+        private void resync() {
+            int next = 1;
+            while (next < length && (frame[next] & 0xff) != SYNC)
+                next++;
+            System.arraycopy(frame, next, frame, 0, length - next);
+            length -= next;
+        }
+    }
+
+    private FrameCodec() {}
+}
@@ -0,0 +1,177 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * UI executor that runs tasks at display frames, at most once per frame.
+ *
+ * Used by ReadCoalescer instead of Handler::post, so read data is delivered once per frame
+ * instead of once per burst, with all chunks of the frame in one batch.
+ * When delivery takes more than half of a frame or frames are late because the UI is busy,
+ * deliveries are spread over more frames, up to MAX_FRAMES, and come back to every frame
+ * while the UI keeps up. Larger batches then cost fewer UI updates.
+ *
+ * The frame source is e.g. Choreographer, see SerialSession. execute() can be called
+ * from any thread, doFrame() is called in the UI thread.
+ * Without frames, e.g. while the screen is off, tasks are run by a timer after FRAME_TIMEOUT
+ * instead, so consumers do not stall.
+ */
+final class FramePacer implements Executor {
+
+    interface FrameScheduler {
+        /**
+         * call doFrame() once at the next frame
+         */
+        void scheduleFrame();
+    }
+
+    interface Timer {
+        /**
+         * run task in the UI thread after delayMillis
+         */
+        void schedule(Runnable task, long delayMillis);
+    }
+
+    static final int MAX_FRAMES = 8;
+    static final long FRAME_TIMEOUT = 100; // millis
+    private static final long DEFAULT_FRAME_NANOS = 16_666_667; // 60 Hz until measured
+    private static final long MIN_FRAME_NANOS = 4_000_000;
+
+    private final FrameScheduler scheduler;
+    private final Timer timer;
+    private final SerialMetrics metrics;
+    private final Runnable timeout = this::onTimeout;
+    private ArrayList<Runnable> tasks = new ArrayList<>(); // guarded by this
+    private ArrayList<Runnable> running = new ArrayList<>();
+    private boolean scheduled;      // guarded by this
+    private boolean frameRequested; // guarded by this, doFrame() pending
+    private boolean timeoutPending; // guarded by this
+
+    // only used in UI thread
+    private long frameNanos = DEFAULT_FRAME_NANOS;
+    private long lastFrame;    // frameTimeNanos of the previous doFrame()
+    private long nextDelivery; // earliest frameTimeNanos of the next delivery
+    private int frames = 1;    // frames per delivery
+    private int frameCount;    // doFrame() calls
+    private int timeoutFrameCount; // at the previous timeout
+
+    /**
+     * @param timer e.g. Handler::postDelayed
+     * @param metrics can be null
+     */
+    FramePacer(FrameScheduler scheduler, Timer timer, SerialMetrics metrics) {
+        this.scheduler = scheduler;
+        this.timer = timer;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        boolean requestFrame, startTimeout;
+        synchronized (this) {
+            tasks.add(task);
+            if(scheduled)
+                return;
+            scheduled = true;
+            requestFrame = !frameRequested; // still pending, if frames are paused
+            frameRequested = true;
+            startTimeout = !timeoutPending;
+            timeoutPending = true;
+        }
+        if(requestFrame)
+            scheduler.scheduleFrame();
+        if(startTimeout)
+            timer.schedule(timeout, FRAME_TIMEOUT);
+    }
+
+    /**
+     * @param frameTimeNanos vsync time in System.nanoTime() base, as Choreographer.FrameCallback
+     */
+    void doFrame(long frameTimeNanos) {
+        long start = System.nanoTime();
+        synchronized (this) {
+            frameRequested = false;
+        }
+        frameCount++;
+        if(lastFrame != 0) {
+            long delta = frameTimeNanos - lastFrame;
+            if(delta >= MIN_FRAME_NANOS && delta < frameNanos * 3 / 2) // consecutive frames
+                frameNanos = Math.max(MIN_FRAME_NANOS, frameNanos + (delta - frameNanos) / 8);
+        }
+        lastFrame = frameTimeNanos;
+        if(frameTimeNanos < nextDelivery - frameNanos / 2) {
+            synchronized (this) {
+                frameRequested = true;
+            }
+            scheduler.scheduleFrame(); // wait for a later frame, tasks stay queued
+            return;
+        }
+        runTasks();
+        long end = System.nanoTime();
+        adapt(end - start, start - frameTimeNanos);
+        if(metrics != null) {
+            metrics.uiFrameMicros.record((end - start) / 1000);
+            metrics.uiFramesPerDelivery.record(frames);
+        }
+        nextDelivery = frameTimeNanos + frames * frameNanos;
+    }
+
+    private void runTasks() {
+        synchronized (this) {
+            ArrayList<Runnable> swap = running;
+            running = tasks;
+            tasks = swap;
+            scheduled = false; // tasks added while running are run at the next delivery
+        }
+        for(Runnable task : running)
+            task.run();
+        running.clear();
+    }
+
+    /**
+     * run tasks if no frame came since the previous timeout. While frames come,
+     * deliveries are only spread and the timeout is repeated until they are run.
+     */
+    private void onTimeout() {
+        synchronized (this) {
+            if(!scheduled) {
+                timeoutPending = false;
+                return;
+            }
+        }
+        if(frameCount != timeoutFrameCount) {
+            timeoutFrameCount = frameCount;
+            timer.schedule(timeout, FRAME_TIMEOUT);
+            return;
+        }
+        synchronized (this) {
+            timeoutPending = false;
+        }
+        runTasks(); // the requested frame stays pending and finds no tasks
+    }
+
+    /**
+     * spread deliveries so they take at most half of the UI thread. Back off quickly,
+     * return to every frame one frame at a time.
+     * @param work time of this delivery
+     * @param late time from vsync until doFrame(), grows when the UI thread is busy
+     */
+    private void adapt(long work, long late) {
+        long budget = frameNanos / 2;
+        int needed = (int) Math.min(MAX_FRAMES, work / budget + 1);
+        if(late > frameNanos)
+            needed = Math.min(MAX_FRAMES, Math.max(needed, frames * 2));
+        if(needed > frames)
+            frames = needed;
+        else if(needed < frames)
+            frames--;
+    }
+
+    /**
+     * frames between deliveries, 1 while the UI keeps up
+     */
+    int getFrames() {
+        return frames;
+    }
+}
@@ -0,0 +1,82 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+/**
+ * assemble newline delimited records across chunk boundaries.
+ *
+ * \n, \r\n and \r end a record, the delimiter is not part of the record.
+ * Lines longer than maxLineLength are split, so the buffer never grows.
+ * A last line without delimiter, e.g. a prompt, is only emitted by flush().
+ * Not thread safe, feed() is called from the SerialSocket thread.
+ */
+final class LineFramer {
+
+    interface RecordListener {
+        /**
+         * data is only valid during the call
+         */
+        void onRecord(byte[] data, int offset, int length);
+    }
+
+    private final byte[] line;
+    private int length;
+    private boolean lastCr;
+
+    LineFramer(int maxLineLength) {
+        line = new byte[maxLineLength];
+    }
+
+    void reset() {
+        length = 0;
+        lastCr = false;
+    }
+
+    /**
+     * emit the buffered partial line as record, e.g. when no more data follows
+     * @return false if nothing was buffered
+     */
+    boolean flush(RecordListener listener) {
+        if(length == 0)
+            return false;
+        listener.onRecord(line, 0, length);
+        length = 0;
+        return true;
+    }
+
+    void feed(byte[] data, int offset, int count, RecordListener listener) {
+        int end = offset + count;
+        int start = offset; // begin of not yet buffered data
+        for(int pos = offset; pos < end; pos++) {
+            byte b = data[pos];
+            if(b == '\n' || b == '\r') {
+                if(b == '\n' && lastCr && pos == start && length == 0) { // \n of \r\n
+                    start = pos + 1;
+                    lastCr = false;
+                    continue;
+                }
+                lastCr = b == '\r';
+                if(length == 0) {
+                    listener.onRecord(data, start, pos - start); // complete record within chunk, no copy
+                } else {
+                    append(data, start, pos - start);
+                    listener.onRecord(line, 0, length);
+                    length = 0;
+                }
+                start = pos + 1;
+            } else {
+                lastCr = false;
+                if(length + pos + 1 - start > line.length) { // guard, emit partial line
+                    append(data, start, pos - start);
+                    listener.onRecord(line, 0, length);
+                    length = 0;
+                    start = pos;
+                }
+            }
+        }
+        append(data, start, end - start);
+    }
+
+    private void append(byte[] data, int offset, int count) {
+        System.arraycopy(data, offset, line, length, count);
+        length += count;
+    }
+}
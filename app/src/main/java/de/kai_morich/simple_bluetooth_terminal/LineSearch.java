@@ -0,0 +1,182 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * search over the LineStore in a background thread.
+ *
+ * setQuery() starts a scan of all kept lines, onLinesAppended() continues the scan
+ * with new lines, so the history is only searched once per query. Matches are reported
+ * incrementally with the total count. A new query cancels the running scan between batches,
+ * results of cancelled scans are not reported.
+ *
+ * Plain text queries are matched on UTF-8 bytes ignoring ASCII case,
+ * regex queries on the decoded line.
+ */
+final class LineSearch {
+
+    private static final long PUBLISH_INTERVAL = 100; // millis
+
+    interface Listener {
+        /**
+         * called in UI thread
+         * @param matches absolute line numbers, ascending, new since the previous call
+         * @param count used length of matches
+         * @param total number of matches since setQuery(), including dropped lines
+         * @param complete all lines appended so far are searched
+         */
+        void onSearchResult(long[] matches, int count, int total, boolean complete);
+    }
+
+    private final LineStore lines;
+    private final Executor executor;
+    private final Executor uiExecutor;
+    private final Listener listener;
+    private final AtomicInteger generation = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile Query query;
+
+    /**
+     * one per setQuery(), the scan state is only used in executor thread
+     */
+    private static final class Query {
+        final int generation;
+        final byte[] needle; // lower case, plain text only
+        final Pattern pattern;
+        final LineStore.Batch batch = new LineStore.Batch();
+        long next; // absolute line number
+        int total;
+
+        Query(int generation, byte[] needle, Pattern pattern) {
+            this.generation = generation;
+            this.needle = needle;
+            this.pattern = pattern;
+        }
+    }
+
+    /**
+     * @param executor single background thread
+     * @param uiExecutor e.g. Handler::post
+     */
+    LineSearch(LineStore lines, Executor executor, Executor uiExecutor, Listener listener) {
+        this.lines = lines;
+        this.executor = executor;
+        this.uiExecutor = uiExecutor;
+        this.listener = listener;
+    }
+
+    /**
+     * call in UI thread
+     * @param text null or empty to stop searching
+     * @throws java.util.regex.PatternSyntaxException for invalid regex
+     */
+    void setQuery(String text, boolean regex) {
+        Pattern pattern = null;
+        byte[] needle = null;
+        if(text != null && !text.isEmpty()) {
+            if(regex)
+                pattern = Pattern.compile(text);
+            else
+                needle = toLowerAscii(text.getBytes(LineStore.CHARSET));
+        }
+        int generation = this.generation.incrementAndGet();
+        query = pattern != null || needle != null ? new Query(generation, needle, pattern) : null;
+        schedule();
+    }
+
+    boolean isSearching() {
+        return query != null;
+    }
+
+    /**
+     * call after lines were appended to the LineStore
+     */
+    void onLinesAppended() {
+        if(query != null)
+            schedule();
+    }
+
+    private void schedule() {
+        if(!scheduled.getAndSet(true))
+            executor.execute(this::scan);
+    }
+
+    private void scan() {
+        scheduled.set(false); // lines appended from now on schedule again
+        Query query = this.query;
+        if(query == null)
+            return;
+        long[] matches = new long[64];
+        int count = 0;
+        long lastPublish = System.currentTimeMillis();
+        Matcher matcher = query.pattern != null ? query.pattern.matcher("") : null;
+        LineStore.Batch batch = query.batch;
+        while (true) {
+            if(query.generation != generation.get())
+                return; // cancelled
+            lines.read(query.next, batch);
+            if(batch.count == 0)
+                break;
+            int start = 0;
+            for(int i = 0; i < batch.count; i++) {
+                int end = batch.ends[i];
+                boolean match;
+                if(matcher != null)
+                    match = matcher.reset(new String(batch.data, start, end - start, LineStore.CHARSET)).find();
+                else
+                    match = contains(batch.data, start, end, query.needle);
+                if(match) {
+                    if(count == matches.length)
+                        matches = Arrays.copyOf(matches, count * 2);
+                    matches[count++] = batch.first + i;
+                    query.total++;
+                }
+                start = end;
+            }
+            query.next = batch.first + batch.count;
+            long now = System.currentTimeMillis();
+            if(count > 0 && now - lastPublish >= PUBLISH_INTERVAL) {
+                publish(query, matches, count, false);
+                matches = new long[64];
+                count = 0;
+                lastPublish = now;
+            }
+        }
+        publish(query, matches, count, true);
+    }
+
+    private void publish(Query query, long[] matches, int count, boolean complete) {
+        int total = query.total;
+        uiExecutor.execute(() -> {
+            if(query.generation == generation.get())
+                listener.onSearchResult(matches, count, total, complete);
+        });
+    }
+
+    private static byte[] toLowerAscii(byte[] data) {
+        for(int i = 0; i < data.length; i++)
+            if(data[i] >= 'A' && data[i] <= 'Z')
+                data[i] += 'a' - 'A';
+        return data;
+    }
+
+    private static boolean contains(byte[] data, int start, int end, byte[] needle) {
+        outer:
+        for(int i = start; i <= end - needle.length; i++) {
+            for(int j = 0; j < needle.length; j++) {
+                byte b = data[i + j];
+                if(b >= 'A' && b <= 'Z')
+                    b += 'a' - 'A';
+                if(b != needle[j])
+                    continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+}
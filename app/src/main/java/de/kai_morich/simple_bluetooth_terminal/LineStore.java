@@ -0,0 +1,182 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * append-only scrollback for the receive list, bounded to maxBytes and maxLines.
+ *
+ * Line bytes are kept in a direct ByteBuffer used as ring, the line index is a ring of
+ * absolute start offsets in a long[]. No object per line, lines are only decoded
+ * when displayed. When full, the oldest lines are dropped.
+ * Positions are relative to the oldest kept line.
+ *
+ * Lines are appended and displayed in UI thread, other threads copy lines
+ * in batches by absolute line number, see read(). Methods are synchronized for this.
+ */
+final class LineStore {
+
+    static final int KIND_RECEIVE = 0;
+    static final int KIND_SEND = 1;
+    static final int KIND_STATUS = 2;
+
+    static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /**
+     * lines copied by read(), line i is data[ends[i-1]..ends[i]) with ends[-1] = 0
+     */
+    static final class Batch {
+        byte[] data = new byte[64 * 1024];
+        final int[] ends = new int[1024];
+        final byte[] kinds = new byte[1024];
+        long first; // absolute line number of line 0
+        int count;
+    }
+
+    private final ByteBuffer buffer;
+    private final ByteBuffer reader; // own position for reading
+    private final int capacity;
+    private final long[] starts; // absolute byte offset by line slot
+    private final byte[] kinds;
+    private long end;   // absolute byte offset after the last line
+    private long first; // absolute number of the oldest line
+    private int size;
+    private byte[] decodeBuffer = new byte[256];
+
+    LineStore(int maxBytes, int maxLines) {
+        capacity = maxBytes;
+        buffer = ByteBuffer.allocateDirect(maxBytes);
+        reader = buffer.duplicate();
+        starts = new long[maxLines];
+        kinds = new byte[maxLines];
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * number of lines dropped since creation, i.e. absolute index of position 0
+     */
+    synchronized long getRemoved() {
+        return first;
+    }
+
+    /**
+     * bytes used by the kept lines
+     */
+    synchronized long getUsedBytes() {
+        return size == 0 ? 0 : end - starts[slot(0)];
+    }
+
+    synchronized int getKind(int position) {
+        return kinds[slot(position)];
+    }
+
+    synchronized int getLength(int position) {
+        int slot = slot(position);
+        long next = position + 1 < size ? starts[(slot + 1) % starts.length] : end;
+        return (int) (next - starts[slot]);
+    }
+
+    /**
+     * copy line bytes without delimiter
+     * @return length
+     */
+    synchronized int getBytes(int position, byte[] dst, int offset) {
+        int length = getLength(position);
+        int pos = (int) (starts[slot(position)] % capacity);
+        int part = Math.min(length, capacity - pos);
+        reader.position(pos);
+        reader.get(dst, offset, part);
+        if(part < length) {
+            reader.position(0);
+            reader.get(dst, offset + part, length - part);
+        }
+        return length;
+    }
+
+    /**
+     * decode line, called for visible lines only
+     */
+    synchronized String get(int position) {
+        int length = getLength(position);
+        if(decodeBuffer.length < length)
+            decodeBuffer = new byte[Math.max(length, decodeBuffer.length * 2)];
+        getBytes(position, decodeBuffer, 0);
+        return new String(decodeBuffer, 0, length, CHARSET);
+    }
+
+    /**
+     * lines longer than maxBytes are truncated
+     * @return number of lines dropped at the start, to make room
+     */
+    synchronized int append(byte[] data, int offset, int length, int kind) {
+        length = Math.min(length, capacity);
+        int dropped = 0;
+        while (size > 0 && (size == starts.length || end + length - starts[slot(0)] > capacity)) {
+            first++;
+            size--;
+            dropped++;
+        }
+        int slot = slot(size);
+        starts[slot] = end;
+        kinds[slot] = (byte) kind;
+        int pos = (int) (end % capacity);
+        int part = Math.min(length, capacity - pos);
+        buffer.position(pos);
+        buffer.put(data, offset, part);
+        if(part < length) {
+            buffer.position(0);
+            buffer.put(data, offset + part, length - part);
+        }
+        end += length;
+        size++;
+        return dropped;
+    }
+
+    /**
+     * absolute line number after the last line
+     */
+    synchronized long getEnd() {
+        return first + size;
+    }
+
+    /**
+     * copy lines from absolute line number from, or from the oldest kept line if already dropped.
+     * Copies as many lines as fit into batch, at least one if available.
+     */
+    synchronized void read(long from, Batch batch) {
+        batch.first = Math.max(from, first);
+        batch.count = 0;
+        int length = 0;
+        for(long line = batch.first; line < first + size && batch.count < batch.ends.length; line++) {
+            int position = (int) (line - first);
+            int lineLength = getLength(position);
+            if(length + lineLength > batch.data.length) {
+                if(batch.count > 0)
+                    break;
+                batch.data = new byte[lineLength];
+            }
+            getBytes(position, batch.data, length);
+            length += lineLength;
+            batch.ends[batch.count] = length;
+            batch.kinds[batch.count] = kinds[slot(position)];
+            batch.count++;
+        }
+    }
+
+    int append(String line, int kind) {
+        byte[] data = line.getBytes(CHARSET);
+        return append(data, 0, data.length, kind);
+    }
+
+    synchronized void clear() {
+        first += size;
+        size = 0;
+    }
+
+    private int slot(int position) {
+        return (int) ((first + position) % starts.length);
+    }
+}
@@ -0,0 +1,209 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * in-process transport, to drive SerialSocket without radio.
+ *
+ * echo: everything written is read back.
+ * else: the other end is available as getPeer() e.g. for a device simulator.
+ */
+class LoopbackTransport implements SerialTransport {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final boolean echo;
+    private final Peer peer = new Peer();
+    private Pipe toApp, toDevice;
+
+    LoopbackTransport(boolean echo) {
+        this.echo = echo;
+    }
+
+    Peer getPeer() {
+        return peer;
+    }
+
+    @Override
+    public String getName() {
+        return echo ? "loopback echo" : "loopback";
+    }
+
+    @Override
+    public void open() {
+        // nothing to reset
+    }
+
+    @Override
+    public synchronized void connect() throws IOException {
+        toApp = new Pipe();
+        toDevice = echo ? toApp : new Pipe();
+        notifyAll();
+    }
+
+    @Override
+    public ConnectPath getConnectPath() {
+        return ConnectPath.Direct;
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        if(toApp == null)
+            throw new IOException("not connected");
+        return toApp.in;
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if(toDevice == null)
+            throw new IOException("not connected");
+        return toDevice.out;
+    }
+
+    @Override
+    public synchronized void close() {
+        if(toApp != null)
+            toApp.close();
+        if(toDevice != null)
+            toDevice.close();
+        toApp = null;
+        toDevice = null;
+    }
+
+    /**
+     * device side of a non-echo loopback transport
+     */
+    class Peer {
+        /**
+         * block until the app side connected. Streams change with each connect.
+         */
+        boolean awaitConnect(long timeoutMillis) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeoutMillis;
+            synchronized (LoopbackTransport.this) {
+                while (toApp == null) {
+                    long wait = end - System.currentTimeMillis();
+                    if(wait <= 0)
+                        return false;
+                    LoopbackTransport.this.wait(wait);
+                }
+            }
+            return true;
+        }
+
+        InputStream getInputStream() throws IOException {
+            synchronized (LoopbackTransport.this) {
+                if(toDevice == null)
+                    throw new IOException("not connected");
+                return toDevice.in;
+            }
+        }
+
+        OutputStream getOutputStream() throws IOException {
+            synchronized (LoopbackTransport.this) {
+                if(toApp == null)
+                    throw new IOException("not connected");
+                return toApp.out;
+            }
+        }
+    }
+
+    /**
+     * blocking byte ring. Unlike PipedInputStream not bound to the writer thread
+     */
+    private static final class Pipe {
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int head, count;
+        private boolean closed;
+
+        final InputStream in = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                synchronized (Pipe.this) {
+                    return count;
+                }
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0)
+                return 0;
+            try {
+                while (count == 0 && !closed)
+                    wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if(count == 0)
+                throw new IOException("closed");
+            int n = Math.min(len, count);
+            int first = Math.min(n, buffer.length - head);
+            System.arraycopy(buffer, head, b, off, first);
+            System.arraycopy(buffer, 0, b, off + first, n - first);
+            head = (head + n) % buffer.length;
+            count -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            try {
+                while (len > 0) {
+                    while (count == buffer.length && !closed)
+                        wait();
+                    if(closed)
+                        throw new IOException("closed");
+                    int tail = (head + count) % buffer.length;
+                    int n = Math.min(len, Math.min(buffer.length - count, buffer.length - tail));
+                    System.arraycopy(b, off, buffer, tail, n);
+                    count += n;
+                    off += n;
+                    len -= n;
+                    notifyAll();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+}
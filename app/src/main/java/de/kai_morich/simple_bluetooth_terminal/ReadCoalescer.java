@@ -0,0 +1,86 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * reduce number of UI updates by merging data chunks.
+ * Data can arrive at hundred chunks per second, but the UI can only
+ * perform a dozen updates if receiveText already contains much text.
+ *
+ * On new data inform UI thread once (1).
+ * While not consumed (2), add more data (3).
+ * After consumption release chunks and reuse the container (4).
+ *
+ * Lock-free single-producer/single-consumer ring: add() must only be called
+ * from one thread (the SerialSocket thread), drain runs in the executor thread.
+ */
+final class ReadCoalescer {
+
+    interface Consumer {
+        /**
+         * called in executor thread.
+         * @return true if consumed, false if the consumer keeps the chunks
+         */
+        boolean onSerialRead(ArrayDeque<ChunkPool.Chunk> chunks);
+    }
+
+    static final int CAPACITY = 1024; // power of 2
+    private static final long FULL_PARK_NANOS = 100_000;
+
+    private final Executor executor;
+    private final Consumer consumer;
+    private final ChunkPool.Chunk[] ring = new ChunkPool.Chunk[CAPACITY];
+    private final AtomicLong head = new AtomicLong(); // next to drain, written by consumer
+    private final AtomicLong tail = new AtomicLong(); // next to add, written by producer
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private ArrayDeque<ChunkPool.Chunk> spare; // only used in executor thread
+    private final Runnable drain = this::drain;
+
+    /**
+     * @param executor UI thread, e.g. Handler::post
+     */
+    ReadCoalescer(Executor executor, Consumer consumer) {
+        this.executor = executor;
+        this.consumer = consumer;
+        spare = new ArrayDeque<>();
+    }
+
+    void add(ChunkPool.Chunk chunk) {
+        long t = tail.get();
+        while (t - head.get() >= CAPACITY) // UI thread far behind, wait instead of dropping data
+            LockSupport.parkNanos(FULL_PARK_NANOS);
+        ring[(int) t & (CAPACITY - 1)] = chunk;
+        tail.set(t + 1); // (3) volatile store, ordered before reading 'scheduled'
+        if(!scheduled.get() && !scheduled.getAndSet(true)) // (1)
+            executor.execute(drain);
+    }
+
+    /**
+     * called in executor thread, also directly to take the data before the consumer changes
+     */
+    void drain() {
+        scheduled.set(false); // (2) chunks added from now on post again
+        ArrayDeque<ChunkPool.Chunk> chunks = spare != null ? spare : new ArrayDeque<>();
+        spare = null;
+        long h = head.get();
+        long t = tail.get();
+        for(; h < t; h++) {
+            int index = (int) h & (CAPACITY - 1);
+            chunks.add(ring[index]);
+            ring[index] = null;
+        }
+        head.set(h);
+        if(chunks.isEmpty()) {
+            spare = chunks; // already drained by previous run
+            return;
+        }
+        if(consumer.onSerialRead(chunks)) {
+            ChunkPool.releaseAll(chunks); // (4)
+            spare = chunks;
+        }
+    }
+}
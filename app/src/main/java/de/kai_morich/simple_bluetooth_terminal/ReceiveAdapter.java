@@ -0,0 +1,191 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.Arrays;
+
+/**
+ * receive list over a LineStore. Only visible lines are decoded and bound,
+ * so appending and scrolling cost does not grow with the scrollback.
+ *
+ * Follows new lines while the list is scrolled to the end.
+ * With setFilter() only matching lines are shown, see LineSearch.
+ */
+class ReceiveAdapter extends RecyclerView.Adapter<ReceiveAdapter.ViewHolder> {
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView text;
+
+        ViewHolder(View view) {
+            super(view);
+            text = view.findViewById(R.id.text1);
+        }
+    }
+
+    private final LineStore lines;
+    private final int[] colors;
+    private RecyclerView list;
+    private LinearLayoutManager layoutManager;
+    private int published; // line count known to the list
+    private int pendingDropped; // lines dropped since last publish()
+    private long[] filter; // absolute line numbers, null if not filtered
+    private int filterStart, filterCount; // matches of dropped lines are before filterStart
+
+    ReceiveAdapter(Context context, LineStore lines) {
+        this.lines = lines;
+        colors = new int[]{
+                context.getResources().getColor(R.color.colorRecieveText),
+                context.getResources().getColor(R.color.colorSendText),
+                context.getResources().getColor(R.color.colorStatusText)};
+    }
+
+    /**
+     * set adapter and layout manager of list
+     */
+    void attach(RecyclerView list) {
+        this.list = list;
+        layoutManager = new LinearLayoutManager(list.getContext());
+        list.setLayoutManager(layoutManager);
+        list.setItemAnimator(null); // no per-item animation for streamed lines
+        list.setAdapter(this);
+        published = lines.size();
+        pendingDropped = 0;
+        list.scrollToPosition(published - 1);
+    }
+
+    void detach() {
+        if(list != null)
+            list.setAdapter(null);
+        list = null;
+        layoutManager = null;
+    }
+
+    /**
+     * append without notification, call publish() after a batch of lines
+     */
+    void append(String line, int kind) {
+        pendingDropped += lines.append(line, kind);
+    }
+
+    void append(byte[] data, int offset, int length, int kind) {
+        pendingDropped += lines.append(data, offset, length, kind);
+    }
+
+    void publish() {
+        if(filter != null) {
+            published = lines.size();
+            pendingDropped = 0;
+            trimFilter();
+            return;
+        }
+        int removed = Math.min(pendingDropped, published);
+        int kept = published - removed;
+        boolean follow = isAtEnd(published);
+        if(removed > 0)
+            notifyItemRangeRemoved(0, removed);
+        if(lines.size() > kept)
+            notifyItemRangeInserted(kept, lines.size() - kept);
+        published = lines.size();
+        pendingDropped = 0;
+        if(follow)
+            list.scrollToPosition(published - 1);
+    }
+
+    void clear() {
+        lines.clear();
+        published = 0;
+        pendingDropped = 0;
+        if(filter != null)
+            filterStart = filterCount = 0;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * show only lines added with addFilterMatches(), or all lines again
+     */
+    void setFilter(boolean enabled) {
+        if(!enabled && filter == null)
+            return;
+        filter = enabled ? new long[256] : null;
+        filterStart = filterCount = 0;
+        published = lines.size();
+        pendingDropped = 0;
+        notifyDataSetChanged();
+        if(list != null && !enabled)
+            list.scrollToPosition(published - 1);
+    }
+
+    boolean isFiltered() {
+        return filter != null;
+    }
+
+    /**
+     * @param matches absolute line numbers, ascending
+     */
+    void addFilterMatches(long[] matches, int count) {
+        if(filter == null || count == 0)
+            return;
+        int oldCount = getItemCount();
+        boolean follow = isAtEnd(oldCount);
+        if(filterStart > filter.length / 2) { // compact
+            System.arraycopy(filter, filterStart, filter, 0, filterCount - filterStart);
+            filterCount -= filterStart;
+            filterStart = 0;
+        }
+        if(filterCount + count > filter.length)
+            filter = Arrays.copyOf(filter, Math.max(filterCount + count, filter.length * 2));
+        System.arraycopy(matches, 0, filter, filterCount, count);
+        filterCount += count;
+        notifyItemRangeInserted(oldCount, count);
+        trimFilter();
+        if(follow)
+            list.scrollToPosition(getItemCount() - 1);
+    }
+
+    /**
+     * hide matches of lines dropped from the LineStore
+     */
+    private void trimFilter() {
+        long removed = lines.getRemoved();
+        int start = filterStart;
+        while (filterStart < filterCount && filter[filterStart] < removed)
+            filterStart++;
+        if(filterStart > start)
+            notifyItemRangeRemoved(0, filterStart - start);
+    }
+
+    private boolean isAtEnd(int itemCount) {
+        return list != null && layoutManager.findLastVisibleItemPosition() >= itemCount - 1;
+    }
+
+    private int linePosition(int position) {
+        return filter != null ? (int) (filter[filterStart + position] - lines.getRemoved()) : position;
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.receive_list_item, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        int line = linePosition(position);
+        holder.text.setText(lines.get(line));
+        holder.text.setTextColor(colors[lines.getKind(line)]);
+    }
+
+    @Override
+    public int getItemCount() {
+        return filter != null ? filterCount - filterStart : lines.size();
+    }
+}
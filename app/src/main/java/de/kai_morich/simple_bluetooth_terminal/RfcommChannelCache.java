@@ -0,0 +1,35 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * RFCOMM channel per device address, as resolved by the last SDP lookup.
+ * Persisted, so reconnects after a process restart, e.g. for alarms, can also skip SDP.
+ */
+final class RfcommChannelCache {
+
+    private static final String PREFS_NAME = "rfcomm_channels";
+
+    private final SharedPreferences prefs;
+
+    RfcommChannelCache(Context context) {
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return channel or -1 if unknown
+     */
+    int get(String address) {
+        return prefs.getInt(address, -1);
+    }
+
+    void put(String address, int channel) {
+        if(get(address) != channel)
+            prefs.edit().putInt(address, channel).apply();
+    }
+
+    void remove(String address) {
+        prefs.edit().remove(address).apply();
+    }
+}
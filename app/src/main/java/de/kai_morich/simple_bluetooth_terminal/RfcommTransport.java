@@ -0,0 +1,155 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+/**
+ * RFCOMM connection to the well-known SPP UUID
+ *
+ * createRfcommSocketToServiceRecord() does an SDP lookup before each connect. The resolved
+ * channel is cached per device, later connects try the cached channel first and fall back
+ * to SDP if that fails. There is no public API for either, so channel based connect and
+ * reading the channel use reflection. If not accessible, every connect uses SDP.
+ */
+class RfcommTransport implements SerialTransport {
+
+    private static final UUID BLUETOOTH_SPP = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    private final BluetoothDevice device;
+    private final RfcommChannelCache channelCache;
+    private volatile BluetoothSocket socket;
+    private volatile boolean closed;
+    private volatile ConnectPath connectPath = ConnectPath.Sdp;
+
+    RfcommTransport(BluetoothDevice device) {
+        this(device, null);
+    }
+
+    /**
+     * @param channelCache null to always use SDP
+     */
+    RfcommTransport(BluetoothDevice device, RfcommChannelCache channelCache) {
+        this.device = device;
+        this.channelCache = channelCache;
+    }
+
+    @Override
+    public String getName() {
+        return device.getName() != null ? device.getName() : device.getAddress();
+    }
+
+    /**
+     * reset by the caller before the connect thread starts, so a close() from disconnect()
+     * in between is not forgotten
+     */
+    @Override
+    public void open() {
+        closed = false;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        int channel = channelCache != null ? channelCache.get(device.getAddress()) : -1;
+        if(channel > 0) {
+            try {
+                connect(createRfcommSocket(channel));
+                connectPath = ConnectPath.Cached;
+                return;
+            } catch (Exception e) {
+                closeSocket();
+                if(closed)
+                    throw new IOException("closed"); // by disconnect, do not continue with SDP
+                channelCache.remove(device.getAddress()); // e.g. channel changed after device update
+            }
+        }
+        connect(device.createRfcommSocketToServiceRecord(BLUETOOTH_SPP));
+        connectPath = ConnectPath.Sdp;
+        if(channelCache != null) {
+            channel = getChannel(socket);
+            if(channel > 0)
+                channelCache.put(device.getAddress(), channel);
+        }
+    }
+
+    @Override
+    public ConnectPath getConnectPath() {
+        return connectPath;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return socket().getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return socket().getOutputStream();
+    }
+
+    /**
+     * close() before socket is visible is seen by the first check, a later close() closes
+     * the socket and unblocks connect(). The second check catches a close() during a connect
+     * that succeeded anyway
+     */
+    private void connect(BluetoothSocket socket) throws IOException {
+        this.socket = socket;
+        if(!closed)
+            socket.connect();
+        if(closed) {
+            closeSocket();
+            throw new IOException("closed");
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        closeSocket();
+    }
+
+    private void closeSocket() {
+        BluetoothSocket socket = this.socket;
+        this.socket = null;
+        if(socket != null) {
+            try {
+                socket.close();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    private BluetoothSocket socket() throws IOException {
+        BluetoothSocket socket = this.socket;
+        if(socket == null)
+            throw new IOException("not connected");
+        return socket;
+    }
+
+    @SuppressLint("DiscouragedPrivateApi")
+    private BluetoothSocket createRfcommSocket(int channel) throws Exception {
+        Method method = device.getClass().getMethod("createRfcommSocket", int.class);
+        return (BluetoothSocket) method.invoke(device, channel);
+    }
+
+    /**
+     * @return channel of connected socket, -1 if not accessible
+     */
+    @SuppressLint("DiscouragedPrivateApi")
+    private static int getChannel(BluetoothSocket socket) {
+        try {
+            Field field = BluetoothSocket.class.getDeclaredField("mPort");
+            field.setAccessible(true);
+            return field.getInt(socket);
+        } catch (Exception ignored) {
+            return -1;
+        }
+    }
+}
@@ -2,10 +2,23 @@ package de.kai_morich.simple_bluetooth_terminal;
 
 import java.util.ArrayDeque;
 
+/**
+ * listener of one SerialSession.
+ *
+ * read chunks are pooled. Listeners must not keep a reference after returning,
+ * the chunks are released by SerialSession once the UI thread consumed them.
+ * With SerialSession.setLineFraming() each chunk is one line without delimiter.
+ * A line without delimiter is passed on when reading pauses, see onSerialReadIdle().
+ *
+ * After a lost connection SerialSession reconnects, onSerialStateChange() reports the
+ * transitions. Connect errors while reconnecting are only reported as state change.
+ */
 interface SerialListener {
     void onSerialConnect      ();
     void onSerialConnectError (Exception e);
-    void onSerialRead         (byte[] data);                // socket -> service
-    void onSerialRead         (ArrayDeque<byte[]> datas);   // service -> UI thread
+    void onSerialRead         (ChunkPool.Chunk chunk);              // socket -> service
+    void onSerialRead         (ArrayDeque<ChunkPool.Chunk> chunks); // service -> UI thread
+    void onSerialReadIdle     ();                                   // socket -> service, no data for a while after a read
     void onSerialIoError      (Exception e);
+    void onSerialStateChange  (SerialSession.ConnectionState state);  // service -> UI thread
 }
@@ -0,0 +1,231 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * counters and histograms of the serial pipeline, cheap enough to stay enabled in release builds.
+ *
+ * Recording only updates atomics and does not allocate. AtomicLong instead of LongAdder,
+ * which needs API 24. Values are read with snapshot(), which is not atomic across metrics.
+ */
+final class SerialMetrics {
+
+    /**
+     * log2 histogram, bucket i counts values in [2^(i-1), 2^i), bucket 0 counts 0
+     */
+    static final class Histogram {
+        static final int BUCKETS = 40;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            if(value < 0)
+                value = 0;
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long m;
+            while (value > (m = max.get()) && !max.compareAndSet(m, value))
+                ;
+        }
+
+        private HistogramSnapshot snapshot(boolean reset) {
+            long[] b = new long[BUCKETS];
+            for(int i = 0; i < BUCKETS; i++)
+                b[i] = reset ? buckets.getAndSet(i, 0) : buckets.get(i);
+            return reset
+                    ? new HistogramSnapshot(b, count.getAndSet(0), sum.getAndSet(0), max.getAndSet(0))
+                    : new HistogramSnapshot(b, count.get(), sum.get(), max.get());
+        }
+    }
+
+    /**
+     * current value and maximum since reset
+     */
+    static final class Gauge {
+        private final AtomicLong value = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void set(long v) {
+            value.set(v);
+            long m;
+            while (v > (m = max.get()) && !max.compareAndSet(m, v))
+                ;
+        }
+    }
+
+    static final class HistogramSnapshot {
+        final long[] buckets;
+        final long count, sum, max;
+
+        HistogramSnapshot(long[] buckets, long count, long sum, long max) {
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        long mean() {
+            return count > 0 ? sum / count : 0;
+        }
+
+        /**
+         * @return upper bound of the bucket containing the p-th percentile, 0 < p <= 100
+         */
+        long percentile(double p) {
+            long rank = (long) Math.ceil(count * p / 100), seen = 0;
+            for(int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if(seen >= rank && seen > 0)
+                    return i == 0 ? 0 : Math.min(max, (1L << i) - 1);
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "n=%d mean=%d p50<=%d p99<=%d max=%d", count, mean(), percentile(50), percentile(99), max);
+        }
+    }
+
+    static final class Snapshot {
+        final long elapsedNanos;
+        final long bytesIn, bytesOut, chunksIn, writesOut;
+        final long connects, connectErrors, ioErrors;
+        final long commandsSent, commandRetries, commandsAcked, commandsFailed;
+        final long queue1Depth, queue1MaxDepth, queue2Depth, queue2MaxDepth, queue2Bytes, queue2MaxBytes, spillDroppedChunks, spillDroppedBytes;
+        final long flowQueuedBytes, flowMaxQueuedBytes, flowBlocks, flowDroppedChunks, flowDroppedBytes, flowCollapses, flowCollapsedBytes;
+        final HistogramSnapshot connectMillis, readToUiMicros, uiBatchChunks, uiFrameMicros, uiFramesPerDelivery, writeMicros, ackMillis, flowBlockedMillis;
+        final HistogramSnapshot[] connectPathMillis; // by SerialTransport.ConnectPath
+
+        private Snapshot(SerialMetrics m, long now, boolean reset) {
+            elapsedNanos  = now - (reset ? m.startNanos.getAndSet(now) : m.startNanos.get());
+            bytesIn       = get(m.bytesIn, reset);
+            bytesOut      = get(m.bytesOut, reset);
+            chunksIn      = get(m.chunksIn, reset);
+            writesOut     = get(m.writesOut, reset);
+            connects      = get(m.connects, reset);
+            connectErrors = get(m.connectErrors, reset);
+            ioErrors      = get(m.ioErrors, reset);
+            commandsSent   = get(m.commandsSent, reset);
+            commandRetries = get(m.commandRetries, reset);
+            commandsAcked  = get(m.commandsAcked, reset);
+            commandsFailed = get(m.commandsFailed, reset);
+            queue1Depth    = m.queue1Depth.value.get();
+            queue1MaxDepth = reset ? m.queue1Depth.max.getAndSet(queue1Depth) : m.queue1Depth.max.get();
+            queue2Depth    = m.queue2Depth.value.get();
+            queue2MaxDepth = reset ? m.queue2Depth.max.getAndSet(queue2Depth) : m.queue2Depth.max.get();
+            queue2Bytes    = m.queue2Bytes.value.get();
+            queue2MaxBytes = reset ? m.queue2Bytes.max.getAndSet(queue2Bytes) : m.queue2Bytes.max.get();
+            spillDroppedChunks = get(m.spillDroppedChunks, reset);
+            spillDroppedBytes  = get(m.spillDroppedBytes, reset);
+            flowQueuedBytes    = m.flowQueuedBytes.value.get();
+            flowMaxQueuedBytes = reset ? m.flowQueuedBytes.max.getAndSet(flowQueuedBytes) : m.flowQueuedBytes.max.get();
+            flowBlocks         = get(m.flowBlocks, reset);
+            flowDroppedChunks  = get(m.flowDroppedChunks, reset);
+            flowDroppedBytes   = get(m.flowDroppedBytes, reset);
+            flowCollapses      = get(m.flowCollapses, reset);
+            flowCollapsedBytes = get(m.flowCollapsedBytes, reset);
+            connectMillis  = m.connectMillis.snapshot(reset);
+            connectPathMillis = new HistogramSnapshot[m.connectPathMillis.length];
+            for(int i = 0; i < connectPathMillis.length; i++)
+                connectPathMillis[i] = m.connectPathMillis[i].snapshot(reset);
+            readToUiMicros = m.readToUiMicros.snapshot(reset);
+            uiBatchChunks  = m.uiBatchChunks.snapshot(reset);
+            uiFrameMicros  = m.uiFrameMicros.snapshot(reset);
+            uiFramesPerDelivery = m.uiFramesPerDelivery.snapshot(reset);
+            writeMicros    = m.writeMicros.snapshot(reset);
+            ackMillis      = m.ackMillis.snapshot(reset);
+            flowBlockedMillis = m.flowBlockedMillis.snapshot(reset);
+        }
+
+        private static long get(AtomicLong counter, boolean reset) {
+            return reset ? counter.getAndSet(0) : counter.get();
+        }
+
+        double perSecond(long count) {
+            return elapsedNanos > 0 ? count * 1e9 / elapsedNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder paths = new StringBuilder();
+            for(SerialTransport.ConnectPath path : SerialTransport.ConnectPath.values())
+                if(connectPathMillis[path.ordinal()].count > 0)
+                    paths.append("\nconnect ms ").append(path).append(": ").append(connectPathMillis[path.ordinal()]);
+            return String.format(Locale.US,
+                    "elapsed %.1f s\n" +
+                    "in: %d bytes (%.0f/s), %d chunks (%.0f/s)\n" +
+                    "out: %d bytes (%.0f/s), %d writes (%.0f/s)\n" +
+                    "connects %d, connect errors %d, io errors %d\n" +
+                    "commands %d, retries %d, acked %d, failed %d\n" +
+                    "queue1 %d (max %d), queue2 %d (max %d), %d bytes (max %d), spill dropped %d chunks %d bytes\n" +
+                    "flow queued %d bytes (max %d), blocked %d, dropped %d chunks %d bytes, collapsed %d times %d bytes\n" +
+                    "connect ms: %s\n" +
+                    "read->UI us: %s\n" +
+                    "chunks per UI update: %s\n" +
+                    "UI update us: %s\n" +
+                    "frames per UI update: %s\n" +
+                    "write us: %s\n" +
+                    "ack ms: %s\n" +
+                    "flow blocked ms: %s",
+                    elapsedNanos / 1e9,
+                    bytesIn, perSecond(bytesIn), chunksIn, perSecond(chunksIn),
+                    bytesOut, perSecond(bytesOut), writesOut, perSecond(writesOut),
+                    connects, connectErrors, ioErrors,
+                    commandsSent, commandRetries, commandsAcked, commandsFailed,
+                    queue1Depth, queue1MaxDepth, queue2Depth, queue2MaxDepth, queue2Bytes, queue2MaxBytes, spillDroppedChunks, spillDroppedBytes,
+                    flowQueuedBytes, flowMaxQueuedBytes, flowBlocks, flowDroppedChunks, flowDroppedBytes, flowCollapses, flowCollapsedBytes,
+                    connectMillis, readToUiMicros, uiBatchChunks, uiFrameMicros, uiFramesPerDelivery, writeMicros, ackMillis, flowBlockedMillis) + paths;
+        }
+    }
+
+    final AtomicLong bytesIn = new AtomicLong();
+    final AtomicLong bytesOut = new AtomicLong();
+    final AtomicLong chunksIn = new AtomicLong();
+    final AtomicLong writesOut = new AtomicLong();   // transport writes, after coalescing
+    final AtomicLong connects = new AtomicLong();
+    final AtomicLong connectErrors = new AtomicLong();
+    final AtomicLong ioErrors = new AtomicLong();
+    final AtomicLong commandsSent = new AtomicLong();
+    final AtomicLong commandRetries = new AtomicLong();
+    final AtomicLong commandsAcked = new AtomicLong();
+    final AtomicLong commandsFailed = new AtomicLong();
+    final Gauge queue1Depth = new Gauge();
+    final Gauge queue2Depth = new Gauge();
+    final Gauge queue2Bytes = new Gauge();             // in memory and spilled
+    final AtomicLong spillDroppedChunks = new AtomicLong();  // spill file full
+    final AtomicLong spillDroppedBytes = new AtomicLong();
+    final Gauge flowQueuedBytes = new Gauge();         // passed to UI queue by FlowControl, not yet drained
+    final AtomicLong flowBlocks = new AtomicLong();          // FlowControl.Policy.BLOCK: read thread waits
+    final AtomicLong flowDroppedChunks = new AtomicLong();   // DROP_OLDEST
+    final AtomicLong flowDroppedBytes = new AtomicLong();
+    final AtomicLong flowCollapses = new AtomicLong();       // COLLAPSE: markers
+    final AtomicLong flowCollapsedBytes = new AtomicLong();
+    final Histogram connectMillis = new Histogram();   // transport connect duration
+    final Histogram[] connectPathMillis = newHistograms(SerialTransport.ConnectPath.values().length); // by ConnectPath
+    final Histogram readToUiMicros = new Histogram();  // socket read until UI delivery
+    final Histogram uiBatchChunks = new Histogram();   // chunks merged per UI update
+    final Histogram uiFrameMicros = new Histogram();   // UI update duration, see FramePacer
+    final Histogram uiFramesPerDelivery = new Histogram(); // display frames per UI update chosen by FramePacer
+    final Histogram writeMicros = new Histogram();     // write() call until passed to transport
+    final Histogram ackMillis = new Histogram();       // last command transmit until ack
+    final Histogram flowBlockedMillis = new Histogram(); // per FlowControl block
+    private final AtomicLong startNanos = new AtomicLong(System.nanoTime());
+
+    private static Histogram[] newHistograms(int count) {
+        Histogram[] histograms = new Histogram[count];
+        for(int i = 0; i < count; i++)
+            histograms[i] = new Histogram();
+        return histograms;
+    }
+
+    Snapshot snapshot(boolean reset) {
+        return new Snapshot(this, System.nanoTime(), reset);
+    }
+}
@@ -9,7 +9,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.Build;
-import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 
@@ -18,57 +17,64 @@ import androidx.annotation.RequiresApi;
 import androidx.core.app.NotificationCompat;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * create notification and queue serial data while activity is not in the foreground
- * use listener chain: SerialSocket -> SerialService -> UI fragment
+ * create notification and keep connections while activity is not in the foreground
+ *
+ * one SerialSession per device address, each with own listener and queues.
+ * Connect, read and write threads of all sessions come from one bounded pool,
+ * idle threads are reused for later connects and reconnects.
  */
-public class SerialService extends Service implements SerialListener {
+public class SerialService extends Service {
 
     class SerialBinder extends Binder {
         SerialService getService() { return SerialService.this; }
+        /**
+         * @return null if no session for address
+         */
+        SerialMetrics.Snapshot getMetrics(String address, boolean reset) {
+            SerialSession session = sessions.get(address);
+            return session != null ? session.getMetrics(reset) : null;
+        }
     }
 
-    private enum QueueType {Connect, ConnectError, Read, IoError}
-
-    private static class QueueItem {
-        QueueType type;
-        ArrayDeque<byte[]> datas;
-        Exception e;
-
-        QueueItem(QueueType type) { this.type=type; if(type==QueueType.Read) init(); }
-        QueueItem(QueueType type, Exception e) { this.type=type; this.e=e; }
-        QueueItem(QueueType type, ArrayDeque<byte[]> datas) { this.type=type; this.datas=datas; }
-
-        void init() { datas = new ArrayDeque<>(); }
-        void add(byte[] data) { datas.add(data); }
-    }
+    static final int MAX_SESSIONS = 7; // active devices in a Bluetooth piconet
+    private static final int THREADS_PER_SESSION = 2; // read, write
+    private static final long IDLE_THREAD_KEEP_ALIVE = 30;
 
-    private final Handler mainLooper;
     private final IBinder binder;
-    private final ArrayDeque<QueueItem> queue1, queue2;
-    private final QueueItem lastRead;
-
-    private SerialSocket socket;
-    private SerialListener listener;
-    private boolean connected;
+    private final HashMap<String, SerialSession> sessions = new HashMap<>(); // only used in main thread
+    private final ThreadPoolExecutor ioExecutor;
+    private boolean destroyed;
 
     /**
      * Lifecylce
      */
     public SerialService() {
-        mainLooper = new Handler(Looper.getMainLooper());
         binder = new SerialBinder();
-        queue1 = new ArrayDeque<>();
-        queue2 = new ArrayDeque<>();
-        lastRead = new QueueItem(QueueType.Read);
+        AtomicInteger threadCount = new AtomicInteger();
+        ioExecutor = new ThreadPoolExecutor(0, MAX_SESSIONS * THREADS_PER_SESSION,
+                IDLE_THREAD_KEEP_ALIVE, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                r -> new Thread(r, "SerialIO-" + threadCount.incrementAndGet()));
     }
 
     @Override
     public void onDestroy() {
+        destroyed = true;
         cancelNotification();
-        disconnect();
+        for(SerialSession session : sessions.values())
+            session.destroy();
+        sessions.clear();
+        ioExecutor.shutdown();
         super.onDestroy();
     }
 
@@ -80,88 +86,113 @@ public class SerialService extends Service implements SerialListener {
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        if (intent != null && Constants.INTENT_ACTION_SEND.equals(intent.getAction())) {
+        // started by AlarmReceiver, with startForegroundService() if in background
+        String device = intent != null ? intent.getStringExtra("device") : null;
+        if (device != null && Constants.INTENT_ACTION_SEND.equals(intent.getAction())) {
             String command = intent.getStringExtra("command");
-            if (command != null) {
-                // Preparamos el comando para enviarlo (con salto de línea)
-                String msg = command + "\n";
-                try {
-                    if (connected) {
-                        write(msg.getBytes());
-                    } else {
-                        // Opcional: Manejar caso donde la alarma suena
-                        // pero ya no estamos conectados.
-                        // Por ahora, solo lo intentará si 'connected' es true.
-                    }
-                } catch (IOException e) {
-                    // Manejar error
-                }
-            }
+            SerialSession session = getSession(device);
+            session.connectDevice();
+            if (command != null)
+                session.queueCommand(command);
+        } else if (device != null && Constants.INTENT_ACTION_WARMUP.equals(intent.getAction())) {
+            SerialSession session = getSession(device);
+            session.connectDevice();
+            session.setNextAlarmTime(intent.getLongExtra("time", 0));
+        }
+        if (intent != null && intent.getAction() != null) {
+            initNotification();
+            createNotification(); // required after startForegroundService()
+            updateNotification();
+            if (!hasConnectedSessions())
+                stopSelf();
         }
         return super.onStartCommand(intent, flags, startId);
     }
 
     /**
-     * Api
+     * Api, call in main thread
      */
-    public void connect(SerialSocket socket) throws IOException {
-        socket.connect(this);
-        this.socket = socket;
-        connected = true;
+    public SerialSession getSession(String address) {
+        if(Looper.getMainLooper().getThread() != Thread.currentThread())
+            throw new IllegalArgumentException("not in main thread");
+        SerialSession session = sessions.get(address);
+        if(session == null) {
+            session = new SerialSession(this, address, ioExecutor);
+            sessions.put(address, session);
+        }
+        return session;
     }
 
-    public void disconnect() {
-        connected = false; // ignore data,errors while disconnecting
-        cancelNotification();
-        if(socket != null) {
-            socket.disconnect();
-            socket = null;
-        }
+    public Collection<SerialSession> getSessions() {
+        return sessions.values();
     }
 
-    public void write(byte[] data) throws IOException {
-        if(!connected)
-            throw new IOException("not connected");
-        socket.write(data);
+    public boolean hasConnectedSessions() {
+        for(SerialSession session : sessions.values())
+            if(session.isConnected())
+                return true;
+        return false;
     }
 
-    public void attach(SerialListener listener) {
-        if(Looper.getMainLooper().getThread() != Thread.currentThread())
-            throw new IllegalArgumentException("not in main thread");
-        initNotification();
-        cancelNotification();
-        // use synchronized() to prevent new items in queue2
-        // new items will not be added to queue1 because mainLooper.post and attach() run in main thread
-        synchronized (this) {
-            this.listener = listener;
-        }
-        for(QueueItem item : queue1) {
-            switch(item.type) {
-                case Connect:       listener.onSerialConnect      (); break;
-                case ConnectError:  listener.onSerialConnectError (item.e); break;
-                case Read:          listener.onSerialRead         (item.datas); break;
-                case IoError:       listener.onSerialIoError      (item.e); break;
+    public void disconnectAll() {
+        for(SerialSession session : sessions.values())
+            session.disconnect();
+    }
+
+    /**
+     * send command to all connected sessions. Each session writes in its own writer thread,
+     * so the command leaves on all links in parallel.
+     * @return per device address, completes when acknowledged
+     */
+    public Map<String, Future<Void>> broadcastCommand(String command) {
+        HashMap<String, Future<Void>> futures = new HashMap<>();
+        for(SerialSession session : sessions.values()) {
+            if(session.isConnected()) {
+                try {
+                    futures.put(session.getAddress(), session.writeCommand(command));
+                } catch (IOException ignored) {
+                    // disconnected meanwhile
+                }
             }
         }
-        for(QueueItem item : queue2) {
-            switch(item.type) {
-                case Connect:       listener.onSerialConnect      (); break;
-                case ConnectError:  listener.onSerialConnectError (item.e); break;
-                case Read:          listener.onSerialRead         (item.datas); break;
-                case IoError:       listener.onSerialIoError      (item.e); break;
+        return futures;
+    }
+
+    /**
+     * write data to all connected sessions in parallel
+     * @return per device address, completes when passed to the transport
+     */
+    public Map<String, Future<Void>> broadcastWrite(byte[] data) {
+        HashMap<String, Future<Void>> futures = new HashMap<>();
+        for(SerialSession session : sessions.values()) {
+            if(session.isConnected()) {
+                try {
+                    futures.put(session.getAddress(), session.write(data));
+                } catch (IOException ignored) {
+                    // not connected at the moment, e.g. reconnecting
+                }
             }
         }
-        queue1.clear();
-        queue2.clear();
+        return futures;
     }
 
-    public void detach() {
-        if(connected)
+    /**
+     * foreground notification while any session is connected and no UI is attached
+     */
+    void updateNotification() {
+        if(destroyed)
+            return;
+        boolean connected = false, attached = false;
+        for(SerialSession session : sessions.values()) {
+            connected |= session.isConnected();
+            attached |= session.isAttached();
+        }
+        if(connected && !attached) {
+            initNotification();
             createNotification();
-        // items already in event queue (posted before detach() to mainLooper) will end up in queue1
-        // items occurring later, will be moved directly to queue2
-        // detach() and mainLooper.post run in the main thread, so all items are caught
-        listener = null;
+        } else {
+            cancelNotification();
+        }
     }
 
     private void initNotification() {
@@ -181,6 +212,11 @@ public class SerialService extends Service implements SerialListener {
     }
 
     private void createNotification() {
+        StringBuilder names = new StringBuilder();
+        for(SerialSession session : sessions.values()) {
+            if(session.isConnected())
+                names.append(names.length() > 0 ? ", " : "").append(session.getName());
+        }
         Intent disconnectIntent = new Intent()
                 .setPackage(getPackageName())
                 .setAction(Constants.INTENT_ACTION_DISCONNECT);
@@ -195,7 +231,7 @@ public class SerialService extends Service implements SerialListener {
                 .setSmallIcon(R.drawable.ic_notification)
                 .setColor(getResources().getColor(R.color.colorPrimary))
                 .setContentTitle(getResources().getString(R.string.app_name))
-                .setContentText(socket != null ? "Connected to "+socket.getName() : "Background Service")
+                .setContentText(names.length() > 0 ? "Connected to "+names : "Background Service")
                 .setContentIntent(restartPendingIntent)
                 .setOngoing(true)
                 .addAction(new NotificationCompat.Action(R.drawable.ic_clear_white_24dp, "Disconnect", disconnectPendingIntent));
@@ -208,108 +244,4 @@ public class SerialService extends Service implements SerialListener {
     private void cancelNotification() {
         stopForeground(true);
     }
-
-    /**
-     * SerialListener
-     */
-    public void onSerialConnect() {
-        if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    mainLooper.post(() -> {
-                        if (listener != null) {
-                            listener.onSerialConnect();
-                        } else {
-                            queue1.add(new QueueItem(QueueType.Connect));
-                        }
-                    });
-                } else {
-                    queue2.add(new QueueItem(QueueType.Connect));
-                }
-            }
-        }
-    }
-
-    public void onSerialConnectError(Exception e) {
-        if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    mainLooper.post(() -> {
-                        if (listener != null) {
-                            listener.onSerialConnectError(e);
-                        } else {
-                            queue1.add(new QueueItem(QueueType.ConnectError, e));
-                            disconnect();
-                        }
-                    });
-                } else {
-                    queue2.add(new QueueItem(QueueType.ConnectError, e));
-                    disconnect();
-                }
-            }
-        }
-    }
-
-    public void onSerialRead(ArrayDeque<byte[]> datas) { throw new UnsupportedOperationException(); }
-
-    /**
-     * reduce number of UI updates by merging data chunks.
-     * Data can arrive at hundred chunks per second, but the UI can only
-     * perform a dozen updates if receiveText already contains much text.
-     *
-     * On new data inform UI thread once (1).
-     * While not consumed (2), add more data (3).
-     */
-    public void onSerialRead(byte[] data) {
-        if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    boolean first;
-                    synchronized (lastRead) {
-                        first = lastRead.datas.isEmpty(); // (1)
-                        lastRead.add(data); // (3)
-                    }
-                    if(first) {
-                        mainLooper.post(() -> {
-                            ArrayDeque<byte[]> datas;
-                            synchronized (lastRead) {
-                                datas = lastRead.datas;
-                                lastRead.init(); // (2)
-                            }
-                            if (listener != null) {
-                                listener.onSerialRead(datas);
-                            } else {
-                                queue1.add(new QueueItem(QueueType.Read, datas));
-                            }
-                        });
-                    }
-                } else {
-                    if(queue2.isEmpty() || queue2.getLast().type != QueueType.Read)
-                        queue2.add(new QueueItem(QueueType.Read));
-                    queue2.getLast().add(data);
-                }
-            }
-        }
-    }
-
-    public void onSerialIoError(Exception e) {
-        if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    mainLooper.post(() -> {
-                        if (listener != null) {
-                            listener.onSerialIoError(e);
-                        } else {
-                            queue1.add(new QueueItem(QueueType.IoError, e));
-                            disconnect();
-                        }
-                    });
-                } else {
-                    queue2.add(new QueueItem(QueueType.IoError, e));
-                    disconnect();
-                }
-            }
-        }
-    }
-
 }
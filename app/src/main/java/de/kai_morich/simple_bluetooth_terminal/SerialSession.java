@@ -0,0 +1,747 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * connection to one device, managed by SerialService.
+ * Queue serial data while no listener is attached,
+ * use listener chain: SerialSocket -> SerialSession -> UI fragment
+ *
+ * queued read data is limited in memory, above the limit it is spilled to a file,
+ * above MAX_SPILL_BYTES it is dropped and a marker with the amount is shown instead.
+ * After attach() spilled data is replayed one block per main looper message.
+ * While attached, read data waiting for the UI is limited by FlowControl
+ * and delivered at most once per display frame, see FramePacer
+ *
+ * after a connection was established, a lost connection is reconnected with exponential
+ * backoff and jitter until disconnect(). Ahead of the next alarm the backoff is shortened,
+ * so the alarm command is a write on a warm link instead of a full connect.
+ */
+final class SerialSession implements SerialListener {
+
+    enum Protocol {Text, Binary}
+
+    enum ConnectionState {Disconnected, Connecting, Connected, Backoff}
+
+    private enum QueueType {Connect, ConnectError, Read, IoError}
+
+    private static class QueueItem {
+        QueueType type;
+        ArrayDeque<ChunkPool.Chunk> datas;
+        long spillStart = -1, spillEnd; // data spilled after datas
+        long spillDropped;              // bytes dropped after the spilled data, spill file full
+        Exception e;
+
+        QueueItem(QueueType type) { this.type=type; if(type==QueueType.Read) init(); }
+        QueueItem(QueueType type, Exception e) { this.type=type; this.e=e; }
+        QueueItem(QueueType type, ArrayDeque<ChunkPool.Chunk> datas) { this.type=type; this.datas=datas; }
+
+        void init() { datas = new ArrayDeque<>(); }
+        void add(ChunkPool.Chunk data) { datas.add(data); }
+    }
+
+    private static class PendingCommand {
+        final String command;
+        final long time;
+
+        PendingCommand(String command, long time) { this.command=command; this.time=time; }
+    }
+
+    private static final int DEFAULT_BACKGROUND_BUFFER_LIMIT = 1024 * 1024;
+    private static final int SPILL_REPLAY_CHUNKS = 8;
+    private static final long MAX_SPILL_BYTES = 64 * 1024 * 1024;
+    private static final int MAX_LINE_LENGTH = 4096;
+    private static final long RECONNECT_MIN_DELAY = 1000;
+    private static final long RECONNECT_MAX_DELAY = 60 * 1000;
+    static final long WARMUP_LEAD = 60 * 1000;                  // reconnect that long before the next alarm, see AlarmScheduler
+    private static final long WARMUP_MAX_DELAY = 5 * 1000;      // backoff limit around the next alarm
+    private static final long PENDING_COMMAND_MAX_AGE = 2 * 60 * 1000;
+
+    private final SerialService service;
+    private final String address;
+    private final Executor ioExecutor;
+    private final Handler mainLooper;
+    private final SerialMetrics metrics = new SerialMetrics();
+    private final ArrayDeque<QueueItem> queue1, queue2;
+    private final ArrayDeque<QueueItem> replay = new ArrayDeque<>(); // only used in main thread, not yet passed to listener after attach()
+    private long replayPosition; // in the spilled data of replay.peek()
+    private final Runnable replayRunnable = this::replay;
+    private final FramePacer framePacer;
+    private Choreographer.FrameCallback frameCallback; // calls framePacer
+    private final ReadCoalescer readCoalescer;
+    private final FlowControl flowControl;
+    private final ChunkPool replayPool;
+    private final ChunkPool recordPool;
+    private final LineFramer lineFramer;
+    private volatile boolean lineFraming = true;
+    private final FrameCodec.Decoder frameDecoder;
+    private volatile Protocol protocol = Protocol.Text;
+    private volatile boolean sequencedCommands;
+    private final CommandPipeline commandPipeline;
+    private long recordReadTime; // of the chunk currently framed, only used in SerialSocket thread
+    private SpillFile spillFile;
+    private int backgroundBufferLimit = DEFAULT_BACKGROUND_BUFFER_LIMIT;
+    private int backgroundBytes;
+    private CaptureLog captureLog; // only used in main thread
+
+    private SerialSocket socket;
+    private volatile SerialListener listener;
+    private boolean connected;
+
+    // reconnect supervisor, only used in main thread
+    private volatile boolean reconnectEnabled; // set after first successful connect
+    private volatile ConnectionState state = ConnectionState.Disconnected;
+    private int reconnectAttempt;
+    private long nextAlarmTime;
+    private final Random random = new Random();
+    private final ArrayDeque<PendingCommand> pendingCommands = new ArrayDeque<>();
+    private final Runnable reconnectRunnable = this::reconnect;
+    private final Runnable warmupRunnable = this::warmup;
+
+    /**
+     * @param ioExecutor shared by all sessions for connect, read and write threads
+     */
+    SerialSession(SerialService service, String address, Executor ioExecutor) {
+        this.service = service;
+        this.address = address;
+        this.ioExecutor = ioExecutor;
+        mainLooper = new Handler(Looper.getMainLooper());
+        queue1 = new ArrayDeque<>();
+        queue2 = new ArrayDeque<>();
+        Choreographer choreographer = Choreographer.getInstance(); // of main thread
+        framePacer = new FramePacer(() -> choreographer.postFrameCallback(frameCallback), mainLooper::postDelayed, metrics);
+        frameCallback = framePacer::doFrame;
+        readCoalescer = new ReadCoalescer(framePacer, this::onSerialReadMain);
+        flowControl = new FlowControl(readCoalescer::add, metrics);
+        replayPool = new ChunkPool();
+        recordPool = new ChunkPool();
+        lineFramer = new LineFramer(MAX_LINE_LENGTH);
+        frameDecoder = new FrameCodec.Decoder();
+        commandPipeline = new CommandPipeline(this::transmitCommand, mainLooper::postDelayed, metrics);
+    }
+
+    /**
+     * disconnect and remove spilled data, when the service is destroyed
+     */
+    void destroy() {
+        disconnect();
+        if(captureLog != null) {
+            captureLog.close();
+            captureLog = null;
+        }
+        if(spillFile != null)
+            spillFile.reset();
+    }
+
+    /**
+     * Api
+     */
+    public void connect(SerialSocket socket) throws IOException {
+        mainLooper.removeCallbacks(reconnectRunnable);
+        reconnectEnabled = false;
+        reconnectAttempt = 0;
+        lineFramer.reset();
+        frameDecoder.reset();
+        socket.setMetrics(metrics);
+        socket.setCaptureLog(captureLog);
+        socket.connect(this, ioExecutor);
+        this.socket = socket;
+        connected = true;
+        setState(ConnectionState.Connecting);
+        service.updateNotification();
+    }
+
+    /**
+     * connect without UI, e.g. for alarms after the process was restarted.
+     * Unlike connect(), failed connects are retried like lost connections.
+     */
+    void connectDevice() {
+        if(connected)
+            return;
+        try {
+            BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+            connect(new SerialSocket(service.getApplicationContext(), device));
+            reconnectEnabled = true;
+        } catch (Exception ignored) {
+            // bluetooth off or permission missing, queued commands expire
+        }
+    }
+
+    public void disconnect() {
+        connected = false; // ignore data,errors while disconnecting
+        reconnectEnabled = false;
+        mainLooper.removeCallbacks(reconnectRunnable);
+        pendingCommands.clear();
+        commandPipeline.reset(new IOException("not connected"));
+        flowControl.reset();
+        if(socket != null) {
+            socket.disconnect();
+            socket = null;
+        }
+        setState(ConnectionState.Disconnected);
+        service.updateNotification();
+    }
+
+    String getAddress() {
+        return address;
+    }
+
+    /**
+     * device name if connected, else address
+     */
+    String getName() {
+        SerialSocket socket = this.socket;
+        return socket != null ? socket.getName() : address;
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    boolean isAttached() {
+        return listener != null;
+    }
+
+    public ConnectionState getConnectionState() {
+        return state;
+    }
+
+    SerialMetrics.Snapshot getMetrics(boolean reset) {
+        return metrics.snapshot(reset);
+    }
+
+    /**
+     * write command now, or after the connection is reestablished. A pending reconnect is started immediately.
+     * Commands pending longer than PENDING_COMMAND_MAX_AGE are dropped.
+     * Call in main thread.
+     * @return true if written now
+     */
+    public boolean queueCommand(String command) {
+        if(state == ConnectionState.Connected) {
+            try {
+                writeCommand(command);
+                return true;
+            } catch (IOException ignored) {
+                // connection just lost, keep command for reconnect
+            }
+        }
+        pendingCommands.add(new PendingCommand(command, SystemClock.elapsedRealtime()));
+        if(state == ConnectionState.Backoff)
+            reconnectNow();
+        return false;
+    }
+
+    /**
+     * keep the connection warm for an alarm at triggerAtMillis (System.currentTimeMillis() time base), 0 for none.
+     * WARMUP_LEAD before the alarm a pending reconnect is started immediately and
+     * backoff delays are limited to WARMUP_MAX_DELAY until WARMUP_LEAD after the alarm.
+     */
+    public void setNextAlarmTime(long triggerAtMillis) {
+        nextAlarmTime = triggerAtMillis;
+        mainLooper.removeCallbacks(warmupRunnable);
+        if(triggerAtMillis > 0)
+            mainLooper.postDelayed(warmupRunnable, Math.max(0, triggerAtMillis - WARMUP_LEAD - System.currentTimeMillis()));
+    }
+
+    /**
+     * does not block, data is written by the SerialSocket writer thread
+     */
+    public Future<Void> write(byte[] data) throws IOException {
+        if(!connected)
+            throw new IOException("not connected");
+        return socket.write(data);
+    }
+
+    /**
+     * send command like "START 5" as text line, with sequenced commands as "START 5 #12",
+     * or as binary frame, depending on protocol. Several commands can be in flight, see CommandPipeline.
+     * @return completes when acknowledged by the device with "ACK 12" or OP_ACK frame,
+     *         plain text commands complete when written
+     */
+    public Future<Void> writeCommand(String command) throws IOException {
+        if(!connected)
+            throw new IOException("not connected");
+        if(protocol == Protocol.Text && !sequencedCommands)
+            return write((command + "\n").getBytes());
+        return commandPipeline.send(command);
+    }
+
+    private void transmitCommand(String command, int sequence) throws IOException {
+        if(protocol == Protocol.Binary)
+            write(FrameCodec.encodeCommand(command, sequence));
+        else
+            write((command + " #" + sequence + "\n").getBytes());
+    }
+
+    /**
+     * Text: newline terminated commands, received data is split into lines
+     * Binary: FrameCodec frames in both directions, listeners receive text and telemetry payloads
+     */
+    public void setProtocol(Protocol protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * text commands get a sequence number and are sent again until acknowledged.
+     * Only for devices that strip the " #12" suffix and answer "ACK 12", like server.py.
+     * Disabled by default, binary frames always have a sequence number
+     */
+    public void setSequencedCommands(boolean enabled) {
+        sequencedCommands = enabled;
+    }
+
+    public boolean isSequencedCommands() {
+        return sequencedCommands;
+    }
+
+    /**
+     * if enabled, listeners receive one chunk per line instead of raw chunks.
+     * Lines are assembled in the SerialSocket thread, see LineFramer.
+     * A last line without newline, e.g. a prompt, is passed on when reading pauses
+     */
+    public void setLineFraming(boolean enabled) {
+        lineFraming = enabled;
+    }
+
+    /**
+     * limit read data waiting for the attached UI, see FlowControl. Default is BLOCK
+     * between FlowControl.DEFAULT_LOW_WATERMARK and DEFAULT_HIGH_WATERMARK bytes
+     */
+    public void setFlowControl(FlowControl.Policy policy, int lowWatermark, int highWatermark) {
+        flowControl.setPolicy(policy, lowWatermark, highWatermark);
+    }
+
+    /**
+     * max. read data kept in memory while detached, more data is spilled to a file
+     */
+    public synchronized void setBackgroundBufferLimit(int bytes) {
+        backgroundBufferLimit = bytes;
+    }
+
+    /**
+     * record all traffic to files in getCaptureDir(), see CaptureLog.
+     * Stays enabled across reconnects. Call in main thread.
+     */
+    public void setCapture(boolean enabled) throws IOException {
+        if(enabled == (captureLog != null))
+            return;
+        if(enabled)
+            captureLog = new CaptureLog(getCaptureDir());
+        if(socket != null)
+            socket.setCaptureLog(enabled ? captureLog : null);
+        if(!enabled) {
+            captureLog.close();
+            captureLog = null;
+        }
+    }
+
+    public boolean isCapturing() {
+        return captureLog != null;
+    }
+
+    File getCaptureDir() {
+        return new File(service.getFilesDir(), "capture_" + address.replace(':', '_'));
+    }
+
+    public void attach(SerialListener listener) {
+        if(Looper.getMainLooper().getThread() != Thread.currentThread())
+            throw new IllegalArgumentException("not in main thread");
+        // read data still waiting for a frame goes to queue1, it was received before queue2
+        readCoalescer.drain();
+        // use synchronized() to prevent new items in queue2
+        // new items will not be added to queue1 because mainLooper.post and attach() run in main thread
+        synchronized (this) {
+            this.listener = listener;
+        }
+        // items not replayed before the previous detach() come first
+        replay.addAll(queue1);
+        replay.addAll(queue2);
+        queue1.clear();
+        queue2.clear();
+        metrics.queue1Depth.set(0);
+        metrics.queue2Depth.set(0);
+        metrics.queue2Bytes.set(0);
+        backgroundBytes = 0;
+        mainLooper.removeCallbacks(replayRunnable);
+        replay();
+        service.updateNotification();
+    }
+
+    /**
+     * pass replay items to the listener. Spilled data is read one block per main looper message,
+     * so hundreds of MB do not block the main thread. Meanwhile new items go to queue1 and follow.
+     */
+    private void replay() {
+        SerialListener listener = this.listener;
+        if(listener == null)
+            return; // continued by next attach()
+        while(true) {
+            if(replay.isEmpty()) {
+                if(queue1.isEmpty())
+                    break;
+                replay.addAll(queue1);
+                queue1.clear();
+                metrics.queue1Depth.set(0);
+            }
+            QueueItem item = replay.peek();
+            switch(item.type) {
+                case Connect:       listener.onSerialConnect      (); break;
+                case ConnectError:  listener.onSerialConnectError (item.e); break;
+                case IoError:       listener.onSerialIoError      (item.e); break;
+                case Read:
+                    if(item.datas != null) {
+                        if(!item.datas.isEmpty())
+                            listener.onSerialRead(item.datas);
+                        ChunkPool.releaseAll(item.datas);
+                        item.datas = null;
+                        replayPosition = item.spillStart;
+                    }
+                    if(item.spillStart >= 0 && replayPosition < item.spillEnd) {
+                        replaySpill(listener, item);
+                        mainLooper.post(replayRunnable);
+                        return;
+                    }
+                    if(item.spillDropped > 0) {
+                        ArrayDeque<ChunkPool.Chunk> marker = droppedMarker(item.spillDropped);
+                        listener.onSerialRead(marker);
+                        ChunkPool.releaseAll(marker);
+                    }
+                    break;
+            }
+            replay.poll();
+        }
+        synchronized (this) {
+            if(spillFile != null)
+                spillFile.reset(); // attached, so nothing is spilled meanwhile
+        }
+        listener.onSerialStateChange(state); // transitions while detached are not queued
+    }
+
+    public void detach() {
+        // items already in event queue (posted before detach() to mainLooper) will end up in queue1
+        // items occurring later, will be moved directly to queue2
+        // read data waiting in ReadCoalescer for a frame is drained to queue1 here, without UI there are no frames.
+        // Read data passed to FlowControl just before is drained by FramePacer's timeout or by attach()
+        listener = null;
+        readCoalescer.drain();
+        mainLooper.removeCallbacks(replayRunnable); // remaining replay items are passed on at the next attach()
+        service.updateNotification();
+    }
+
+    /**
+     * reconnect supervisor
+     */
+    private void setState(ConnectionState state) {
+        if(this.state == state)
+            return;
+        this.state = state;
+        if(listener != null)
+            listener.onSerialStateChange(state);
+    }
+
+    private void onConnected() {
+        if(!connected)
+            return;
+        reconnectAttempt = 0;
+        setState(ConnectionState.Connected);
+        long now = SystemClock.elapsedRealtime();
+        while(!pendingCommands.isEmpty()) {
+            PendingCommand pending = pendingCommands.peek();
+            if(now - pending.time <= PENDING_COMMAND_MAX_AGE) {
+                try {
+                    writeCommand(pending.command);
+                } catch (IOException e) {
+                    break; // lost again, keep for next reconnect
+                }
+            }
+            pendingCommands.poll();
+        }
+    }
+
+    /**
+     * called in main thread after connect- or io-error
+     */
+    private void onConnectionLost() {
+        if(!connected || (state != ConnectionState.Connected && state != ConnectionState.Connecting))
+            return; // already handled, e.g. read and write error of the same connection
+        if(!reconnectEnabled || socket.isDisconnectRequested()) {
+            disconnect();
+            return;
+        }
+        socket.disconnect();
+        long maxDelay = RECONNECT_MAX_DELAY;
+        long now = System.currentTimeMillis();
+        if(nextAlarmTime > 0 && now >= nextAlarmTime - WARMUP_LEAD && now <= nextAlarmTime + WARMUP_LEAD)
+            maxDelay = WARMUP_MAX_DELAY;
+        long delay = Math.min(maxDelay, RECONNECT_MIN_DELAY << Math.min(reconnectAttempt, 16));
+        delay = delay / 2 + (long) (random.nextDouble() * (delay / 2)); // jitter, so devices do not retry in lockstep
+        reconnectAttempt++;
+        setState(ConnectionState.Backoff);
+        mainLooper.postDelayed(reconnectRunnable, delay);
+    }
+
+    private void reconnect() {
+        if(!connected || state != ConnectionState.Backoff)
+            return;
+        lineFramer.reset();
+        frameDecoder.reset();
+        setState(ConnectionState.Connecting);
+        try {
+            socket.connect(this, ioExecutor);
+        } catch (IOException e) {
+            onConnectionLost();
+        }
+    }
+
+    private void reconnectNow() {
+        mainLooper.removeCallbacks(reconnectRunnable);
+        reconnectAttempt = 0;
+        reconnect();
+    }
+
+    private void warmup() {
+        if(state == ConnectionState.Backoff)
+            reconnectNow();
+    }
+
+    /**
+     * SerialListener
+     */
+    public void onSerialConnect() {
+        if(connected) {
+            reconnectEnabled = true;
+            mainLooper.post(this::onConnected);
+            synchronized (this) {
+                if (listener != null) {
+                    mainLooper.post(() -> {
+                        if (listener != null && replay.isEmpty()) {
+                            listener.onSerialConnect();
+                        } else {
+                            queue1.add(new QueueItem(QueueType.Connect));
+                            metrics.queue1Depth.set(queue1.size());
+                        }
+                    });
+                } else {
+                    queue2.add(new QueueItem(QueueType.Connect));
+                    metrics.queue2Depth.set(queue2.size());
+                }
+            }
+        }
+    }
+
+    public void onSerialConnectError(Exception e) {
+        if(connected) {
+            if(reconnectEnabled) {
+                mainLooper.post(this::onConnectionLost); // only reported as state change
+                return;
+            }
+            synchronized (this) {
+                if (listener != null) {
+                    mainLooper.post(() -> {
+                        if (listener != null && replay.isEmpty()) {
+                            listener.onSerialConnectError(e);
+                        } else {
+                            queue1.add(new QueueItem(QueueType.ConnectError, e));
+                            metrics.queue1Depth.set(queue1.size());
+                            disconnect();
+                        }
+                    });
+                } else {
+                    queue2.add(new QueueItem(QueueType.ConnectError, e));
+                    metrics.queue2Depth.set(queue2.size());
+                    mainLooper.post(this::disconnect);
+                }
+            }
+        }
+    }
+
+    public void onSerialRead(ArrayDeque<ChunkPool.Chunk> datas) { throw new UnsupportedOperationException(); }
+
+    public void onSerialStateChange(ConnectionState state) { throw new UnsupportedOperationException(); }
+
+    public void onSerialRead(ChunkPool.Chunk data) {
+        recordReadTime = data.readTime;
+        if(connected && protocol == Protocol.Binary) {
+            frameDecoder.feed(data.data, 0, data.length, this::onSerialFrame);
+            data.release();
+        } else if(connected && lineFraming) {
+            lineFramer.feed(data.data, 0, data.length, this::onSerialLine);
+            data.release();
+        } else {
+            onSerialReadQueued(data);
+        }
+    }
+
+    public void onSerialReadIdle() {
+        if(connected && protocol != Protocol.Binary && lineFraming)
+            lineFramer.flush(this::onSerialLine);
+    }
+
+    private void onSerialFrame(int opcode, int sequence, byte[] payload, int offset, int length) {
+        if(opcode == FrameCodec.OP_ACK)
+            commandPipeline.onAck(sequence);
+        else if(opcode == FrameCodec.OP_TEXT || opcode == FrameCodec.OP_TELEMETRY)
+            onSerialRecord(payload, offset, length);
+    }
+
+    /**
+     * ack lines are consumed by the command pipeline. Without line framing acks are not detected
+     */
+    private void onSerialLine(byte[] data, int offset, int length) {
+        int ack = CommandPipeline.parseAck(data, offset, length);
+        if(ack >= 0)
+            commandPipeline.onAck(ack);
+        else
+            onSerialRecord(data, offset, length);
+    }
+
+    private void onSerialRecord(byte[] data, int offset, int length) {
+        ChunkPool.Chunk record = recordPool.obtain(length);
+        System.arraycopy(data, offset, record.data, 0, length);
+        record.length = length;
+        record.readTime = recordReadTime;
+        onSerialReadQueued(record);
+    }
+
+    /**
+     * UI updates are merged by ReadCoalescer, data waiting for the UI is bounded by FlowControl.
+     * While attached no lock is taken, synchronized() only guards the switch to queue2.
+     * FlowControl can block, so it is called outside the lock that attach() needs.
+     */
+    private void onSerialReadQueued(ChunkPool.Chunk data) {
+        if(connected) {
+            if (listener != null) {
+                flowControl.offer(data);
+                return;
+            }
+            synchronized (this) {
+                if (listener == null) {
+                    if(queue2.isEmpty() || queue2.getLast().type != QueueType.Read) {
+                        queue2.add(new QueueItem(QueueType.Read));
+                        metrics.queue2Depth.set(queue2.size());
+                    }
+                    QueueItem item = queue2.getLast();
+                    if(item.spillStart < 0 && item.spillDropped == 0 && backgroundBytes + data.length <= backgroundBufferLimit) {
+                        item.add(data);
+                        backgroundBytes += data.length;
+                    } else {
+                        spill(item, data); // once spilled or dropped, following data of this item is also spilled to keep the order
+                    }
+                    metrics.queue2Bytes.set(backgroundBytes + (spillFile != null ? spillFile.length() : 0));
+                    return;
+                }
+            }
+            flowControl.offer(data); // attached meanwhile
+        } else {
+            data.release();
+        }
+    }
+
+    private void spill(QueueItem item, ChunkPool.Chunk data) {
+        try {
+            if(spillFile == null)
+                spillFile = new SpillFile(new File(service.getCacheDir(), "background_read_" + address.replace(':', '_') + ".spill"));
+            if(item.spillDropped == 0 && spillFile.length() + SpillFile.RECORD_HEADER + data.length <= MAX_SPILL_BYTES) {
+                if(item.spillStart < 0)
+                    item.spillStart = spillFile.length();
+                spillFile.appendRecord(data.data, 0, data.length);
+                item.spillEnd = spillFile.length();
+                data.release();
+                return;
+            }
+        } catch (IOException ignored) {
+            // storage not writable, data is dropped instead of exhausting memory
+        }
+        item.spillDropped += data.length;
+        metrics.spillDroppedChunks.incrementAndGet();
+        metrics.spillDroppedBytes.addAndGet(data.length);
+        data.release();
+    }
+
+    /**
+     * stream one block of SPILL_REPLAY_CHUNKS spilled chunks back from replayPosition, so memory use stays bounded.
+     * One chunk per spilled chunk, so framed lines stay separate
+     */
+    private void replaySpill(SerialListener listener, QueueItem item) {
+        ArrayDeque<ChunkPool.Chunk> datas = new ArrayDeque<>();
+        try {
+            for(int i = 0; i < SPILL_REPLAY_CHUNKS && replayPosition < item.spillEnd; i++) {
+                ChunkPool.Chunk chunk = replayPool.obtain(ChunkPool.MAX_SIZE);
+                datas.add(chunk);
+                int len = spillFile.readRecord(replayPosition, chunk.data);
+                if(len < 0)
+                    throw new IOException("spill file truncated");
+                chunk.length = len;
+                replayPosition += SpillFile.RECORD_HEADER + len;
+            }
+            listener.onSerialRead(datas);
+        } catch (IOException ignored) {
+            replayPosition = item.spillEnd; // remaining spilled data lost
+        }
+        ChunkPool.releaseAll(datas);
+    }
+
+    private ArrayDeque<ChunkPool.Chunk> droppedMarker(long bytes) {
+        byte[] text = String.format(Locale.US, "[%d bytes dropped]", bytes).getBytes(Charset.forName("UTF-8"));
+        ChunkPool.Chunk chunk = replayPool.obtain(text.length);
+        System.arraycopy(text, 0, chunk.data, 0, text.length);
+        chunk.length = text.length;
+        ArrayDeque<ChunkPool.Chunk> datas = new ArrayDeque<>();
+        datas.add(chunk);
+        return datas;
+    }
+
+    private boolean onSerialReadMain(ArrayDeque<ChunkPool.Chunk> datas) {
+        flowControl.onDrained(datas);
+        if (listener != null && replay.isEmpty()) {
+            long now = System.nanoTime();
+            metrics.uiBatchChunks.record(datas.size());
+            for(ChunkPool.Chunk data : datas)
+                if(data.readTime != 0)
+                    metrics.readToUiMicros.record((now - data.readTime) / 1000);
+            listener.onSerialRead(datas);
+            return true;
+        } else {
+            queue1.add(new QueueItem(QueueType.Read, datas));
+            metrics.queue1Depth.set(queue1.size());
+            return false;
+        }
+    }
+
+    public void onSerialIoError(Exception e) {
+        if(connected) {
+            synchronized (this) {
+                if (listener != null) {
+                    mainLooper.post(() -> {
+                        if (listener != null && replay.isEmpty()) {
+                            listener.onSerialIoError(e);
+                        } else {
+                            queue1.add(new QueueItem(QueueType.IoError, e));
+                            metrics.queue1Depth.set(queue1.size());
+                        }
+                        onConnectionLost();
+                    });
+                } else {
+                    queue2.add(new QueueItem(QueueType.IoError, e));
+                    metrics.queue2Depth.set(queue2.size());
+                    mainLooper.post(this::onConnectionLost);
+                }
+            }
+        }
+    }
+
+}
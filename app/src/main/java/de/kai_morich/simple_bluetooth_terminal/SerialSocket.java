@@ -2,7 +2,6 @@ package de.kai_morich.simple_bluetooth_terminal;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -11,31 +10,49 @@ import android.content.IntentFilter;
 import androidx.core.content.ContextCompat;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.InvalidParameterException;
-import java.util.Arrays;
-import java.util.UUID;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-class SerialSocket implements Runnable {
+class SerialSocket {
 
-    private static final UUID BLUETOOTH_SPP = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    private static final long READ_IDLE = 50; // millis without data until onSerialReadIdle()
+    private static final long READ_IDLE_POLL = 10;
 
     private final BroadcastReceiver disconnectBroadcastReceiver;
 
     private final Context context;
     private SerialListener listener;
-    private final BluetoothDevice device;
-    private BluetoothSocket socket;
-    private boolean connected;
+    private final SerialTransport transport;
+    private boolean connected;       // guarded by this
+    private volatile boolean disconnectRequested;
+    private final ChunkPool pool = new ChunkPool();
+    private SerialWriter writer;      // guarded by this
+    private Connection connection;   // guarded by this, null after disconnect()
+    private Executor executor;
+    private volatile SerialMetrics metrics;
+    private volatile CaptureLog captureLog;
 
     SerialSocket(Context context, BluetoothDevice device) {
+        this(context, new RfcommTransport(device, context != null ? new RfcommChannelCache(context) : null));
+    }
+
+    /**
+     * context can be null when running off-device, e.g. with Loopback- or TcpTransport.
+     * Then no disconnect broadcast is received.
+     */
+    SerialSocket(Context context, SerialTransport transport) {
         if(context instanceof Activity)
             throw new InvalidParameterException("expected non UI context");
         this.context = context;
-        this.device = device;
+        this.transport = transport;
         disconnectBroadcastReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
+                disconnectRequested = true;
                 if(listener != null)
                     listener.onSerialIoError(new IOException("background disconnect"));
                 disconnect(); // disconnect now, else would be queued until UI re-attached
@@ -44,77 +61,236 @@ class SerialSocket implements Runnable {
     }
 
     String getName() {
-        return device.getName() != null ? device.getName() : device.getAddress();
+        return transport.getName();
+    }
+
+    /**
+     * record connect, read and write statistics, null to disable
+     */
+    void setMetrics(SerialMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * record all received and written data, null to disable. Can be changed while connected.
+     */
+    void setCaptureLog(CaptureLog captureLog) {
+        this.captureLog = captureLog;
+        SerialWriter writer;
+        synchronized (this) {
+            writer = this.writer;
+        }
+        if(writer != null)
+            writer.setCaptureLog(captureLog);
     }
 
     /**
-     * connect-success and most connect-errors are returned asynchronously to listener
+     * true after disconnect from notification, SerialSession then does not reconnect
      */
-    void connect(SerialListener listener) throws IOException {
+    boolean isDisconnectRequested() {
+        return disconnectRequested;
+    }
+
+    /**
+     * connect-success and most connect-errors are returned asynchronously to listener.
+     * Can be called again after disconnect() to reconnect.
+     * @param executor runs connect & read loop and writer, see SerialService
+     */
+    void connect(SerialListener listener, Executor executor) throws IOException {
         this.listener = listener;
-        ContextCompat.registerReceiver(context, disconnectBroadcastReceiver, new IntentFilter(Constants.INTENT_ACTION_DISCONNECT), ContextCompat.RECEIVER_NOT_EXPORTED);
-        Executors.newSingleThreadExecutor().submit(this);
+        this.executor = executor;
+        disconnectRequested = false;
+        Connection connection = new Connection();
+        synchronized (this) {
+            this.connection = connection;
+        }
+        transport.open(); // a disconnect() from now on cancels the connect
+        try {
+            executor.execute(connection);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                this.connection = null;
+            }
+            throw new IOException("too many connections");
+        }
+        if(context != null)
+            ContextCompat.registerReceiver(context, disconnectBroadcastReceiver, new IntentFilter(Constants.INTENT_ACTION_DISCONNECT), ContextCompat.RECEIVER_NOT_EXPORTED);
     }
 
     void disconnect() {
         listener = null; // ignore remaining data and errors
-        // connected = false; // run loop will reset connected
-        if(socket != null) {
+        SerialWriter writer;
+        synchronized (this) {
+            connection = null; // a late error of the old connection does not touch the next one
+            connected = false;
+            writer = this.writer;
+            this.writer = null;
+            transport.close();
+        }
+        if(writer != null)
+            writer.stop();
+        if(context != null) {
             try {
-                socket.close();
+                context.unregisterReceiver(disconnectBroadcastReceiver);
             } catch (Exception ignored) {
             }
-            socket = null;
-        }
-        try {
-            context.unregisterReceiver(disconnectBroadcastReceiver);
-        } catch (Exception ignored) {
         }
     }
 
-    void write(byte[] data) throws IOException {
-        if (!connected)
+    /**
+     * queued for the writer thread, errors are also returned asynchronously to listener
+     */
+    Future<Void> write(byte[] data) throws IOException {
+        SerialWriter writer;
+        synchronized (this) {
+            writer = connected ? this.writer : null;
+        }
+        if (writer == null)
             throw new IOException("not connected");
-        socket.getOutputStream().write(data);
+        return writer.write(data);
     }
 
-    @Override
-    public void run() { // connect & read
-        try {
-            socket = device.createRfcommSocketToServiceRecord(BLUETOOTH_SPP);
-            socket.connect();
+    /**
+     * one connect() until the connection is lost or disconnect() is called.
+     *
+     * The shared fields and the transport are only changed while this is the current connection,
+     * so a late error in the thread of an old connection cannot stop the writer or close the
+     * transport of a reconnect. A lost connection is reported once, the first of read and
+     * write error, the other one is caused by closing the transport.
+     */
+    private final class Connection implements Runnable {
+
+        private final AtomicBoolean lost = new AtomicBoolean();
+        private SerialWriter writer;
+
+        @Override
+        public void run() { // connect & read
+            SerialMetrics metrics = SerialSocket.this.metrics;
+            try {
+                long start = System.nanoTime();
+                transport.connect();
+                if(metrics != null) {
+                    metrics.connects.incrementAndGet();
+                    long millis = (System.nanoTime() - start) / 1000000;
+                    metrics.connectMillis.record(millis);
+                    metrics.connectPathMillis[transport.getConnectPath().ordinal()].record(millis);
+                }
+            } catch (Exception e) {
+                if(metrics != null)
+                    metrics.connectErrors.incrementAndGet();
+                SerialListener listener;
+                synchronized (SerialSocket.this) {
+                    if(connection != this)
+                        return; // disconnected meanwhile
+                    connection = null;
+                    transport.close(); // before notification, listener might reconnect
+                    listener = SerialSocket.this.listener;
+                }
+                if(listener != null)
+                    listener.onSerialConnectError(e);
+                return;
+            }
+            try {
+                writer = new SerialWriter(transport.getOutputStream(), metrics, this::onLost);
+                writer.setCaptureLog(captureLog);
+                executor.execute(writer);
+            } catch (IOException e) {
+                onLost(e);
+                return;
+            } catch (RejectedExecutionException e) {
+                onLost(new IOException("too many connections"));
+                return;
+            }
+            SerialListener listener;
+            synchronized (SerialSocket.this) {
+                if(connection != this) {
+                    writer.stop();
+                    return; // disconnected meanwhile
+                }
+                SerialSocket.this.writer = writer;
+                connected = true;
+                listener = SerialSocket.this.listener;
+            }
             if(listener != null)
                 listener.onSerialConnect();
-        } catch (Exception e) {
-            if(listener != null)
-                listener.onSerialConnectError(e);
             try {
-                socket.close();
-            } catch (Exception ignored) {
+                // read directly into pooled chunks, sized by recent bursts
+                ChunkPool.ReadSizer sizer = new ChunkPool.ReadSizer();
+                ChunkPool.Chunk chunk = null;
+                InputStream in = transport.getInputStream();
+                boolean read = false; // since the last onSerialReadIdle()
+                int len;
+                //noinspection InfiniteLoopStatement
+                while (true) {
+                    if(read && in.available() == 0 && !awaitData(in)) {
+                        read = false;
+                        listener = SerialSocket.this.listener;
+                        if(listener != null)
+                            listener.onSerialReadIdle();
+                    }
+                    if(chunk == null)
+                        chunk = pool.obtain(sizer.next());
+                    len = in.read(chunk.data, 0, Math.min(sizer.next(), chunk.capacity()));
+                    if(len < 0)
+                        throw new IOException("end of stream");
+                    sizer.update(len);
+                    chunk.length = len;
+                    if(metrics != null) {
+                        chunk.readTime = System.nanoTime();
+                        metrics.chunksIn.incrementAndGet();
+                        metrics.bytesIn.addAndGet(len);
+                    }
+                    CaptureLog captureLog = SerialSocket.this.captureLog;
+                    if(captureLog != null)
+                        captureLog.append(CaptureLog.RX, chunk.data, 0, len);
+                    listener = SerialSocket.this.listener;
+                    if(listener != null) {
+                        listener.onSerialRead(chunk);
+                        chunk = null;
+                        read = true;
+                    }
+                }
+            } catch (Exception e) {
+                onLost(e);
             }
-            socket = null;
-            return;
         }
-        connected = true;
-        try {
-            byte[] buffer = new byte[1024];
-            int len;
-            //noinspection InfiniteLoopStatement
-            while (true) {
-                len = socket.getInputStream().read(buffer);
-                byte[] data = Arrays.copyOf(buffer, len);
-                if(listener != null)
-                    listener.onSerialRead(data);
+
+        /**
+         * short polling before the blocking read, only after a burst of data
+         * @return false if no data arrived within READ_IDLE
+         */
+        private boolean awaitData(InputStream in) throws IOException, InterruptedException {
+            for(long waited = 0; waited < READ_IDLE; waited += READ_IDLE_POLL) {
+                Thread.sleep(READ_IDLE_POLL);
+                if(in.available() > 0)
+                    return true;
             }
-        } catch (Exception e) {
-            connected = false;
+            return false;
+        }
+
+        /**
+         * read or write error, called from the reader or the writer thread
+         */
+        private void onLost(Exception e) {
+            if(!lost.compareAndSet(false, true))
+                return;
+            if(writer != null)
+                writer.stop();
+            SerialListener listener;
+            synchronized (SerialSocket.this) {
+                if(connection != this)
+                    return; // disconnected meanwhile, maybe already reconnected
+                connection = null;
+                connected = false;
+                SerialSocket.this.writer = null;
+                transport.close();
+                listener = SerialSocket.this.listener;
+            }
+            SerialMetrics metrics = SerialSocket.this.metrics;
+            if(metrics != null)
+                metrics.ioErrors.incrementAndGet();
             if (listener != null)
                 listener.onSerialIoError(e);
-            try {
-                socket.close();
-            } catch (Exception ignored) {
-            }
-            socket = null;
         }
     }
 
@@ -0,0 +1,30 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * byte stream below SerialSocket.
+ *
+ * open() is called before the SerialSocket thread is started, connect() is called from
+ * that thread and blocks until connected.
+ * close() can be called from any thread and has to unblock pending connect() and read().
+ * A close() after open() cancels the connect, also if connect() was not called yet.
+ * A closed transport can be connected again.
+ */
+interface SerialTransport {
+
+    /**
+     * how the last connect() reached the device, for connect latency per path
+     */
+    enum ConnectPath {Direct, Cached, Sdp}
+
+    String getName();
+    void open();
+    void connect() throws IOException;
+    ConnectPath getConnectPath();
+    InputStream getInputStream() throws IOException;
+    OutputStream getOutputStream() throws IOException;
+    void close();
+}
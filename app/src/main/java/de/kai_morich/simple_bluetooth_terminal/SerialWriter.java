@@ -0,0 +1,161 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * write queue drained by a dedicated thread, so callers never block on a stalled link.
+ *
+ * Small writes queued within WINDOW_NANOS after the first one are merged
+ * into a single transport write of up to MAX_WRITE bytes.
+ */
+final class SerialWriter implements Runnable {
+
+    static final int MAX_WRITE = 1024;
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    interface ErrorListener {
+        void onWriteError(Exception e);
+    }
+
+    static final class WriteFuture extends FutureTask<Void> {
+        final byte[] data;
+        final long time = System.nanoTime();
+
+        WriteFuture(byte[] data) {
+            super(() -> null);
+            this.data = data;
+        }
+
+        void complete() { set(null); }
+        void fail(Exception e) { setException(e); }
+    }
+
+    private static final WriteFuture STOP = new WriteFuture(new byte[0]);
+
+    private final LinkedBlockingQueue<WriteFuture> queue = new LinkedBlockingQueue<>(); // only run() takes items
+    private final OutputStream out;
+    private final ErrorListener errorListener;
+    private final SerialMetrics metrics;
+    private volatile CaptureLog captureLog;
+    private volatile boolean stopped; // set with the lock on queue, so nothing is added after STOP
+
+    /**
+     * @param metrics can be null
+     */
+    SerialWriter(OutputStream out, SerialMetrics metrics, ErrorListener errorListener) {
+        this.out = out;
+        this.metrics = metrics;
+        this.errorListener = errorListener;
+    }
+
+    /**
+     * @return completes when the data was passed to the transport
+     */
+    Future<Void> write(byte[] data) throws IOException {
+        WriteFuture future = new WriteFuture(data);
+        synchronized (queue) {
+            if(stopped)
+                throw new IOException("not connected");
+            queue.add(future);
+        }
+        return future;
+    }
+
+    /**
+     * record written data, null to disable
+     */
+    void setCaptureLog(CaptureLog captureLog) {
+        this.captureLog = captureLog;
+    }
+
+    /**
+     * data written before is still sent, then run() ends
+     */
+    void stop() {
+        synchronized (queue) {
+            if(stopped)
+                return;
+            stopped = true;
+            queue.add(STOP);
+        }
+    }
+
+    @Override
+    public void run() {
+        byte[] buffer = new byte[MAX_WRITE];
+        ArrayList<WriteFuture> batch = new ArrayList<>();
+        WriteFuture next = null;
+        try {
+            while (true) {
+                WriteFuture first = next != null ? next : queue.take();
+                next = null;
+                if(first == STOP)
+                    break;
+                batch.add(first);
+                int len;
+                byte[] written;
+                if(first.data.length >= MAX_WRITE) {
+                    len = first.data.length;
+                    written = first.data;
+                    out.write(first.data);
+                } else {
+                    len = first.data.length;
+                    System.arraycopy(first.data, 0, buffer, 0, len);
+                    long deadline = System.nanoTime() + WINDOW_NANOS;
+                    while (true) {
+                        long wait = deadline - System.nanoTime();
+                        WriteFuture f = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                        if(f == null)
+                            break;
+                        if(f == STOP || len + f.data.length > MAX_WRITE) {
+                            next = f;
+                            break;
+                        }
+                        System.arraycopy(f.data, 0, buffer, len, f.data.length);
+                        len += f.data.length;
+                        batch.add(f);
+                    }
+                    written = buffer;
+                    out.write(buffer, 0, len);
+                }
+                CaptureLog captureLog = this.captureLog;
+                if(captureLog != null)
+                    captureLog.append(CaptureLog.TX, written, 0, len);
+                if(metrics != null) {
+                    long now = System.nanoTime();
+                    metrics.bytesOut.addAndGet(len);
+                    metrics.writesOut.incrementAndGet();
+                    for(WriteFuture f : batch)
+                        metrics.writeMicros.record((now - f.time) / 1000);
+                }
+                for(WriteFuture f : batch)
+                    f.complete();
+                batch.clear();
+            }
+        } catch (Exception e) {
+            for(WriteFuture f : batch)
+                f.fail(e);
+            if(!stopped)
+                errorListener.onWriteError(e);
+        }
+        synchronized (queue) {
+            stopped = true; // no more writes are queued
+        }
+        if(next != null && next != STOP)
+            next.fail(new IOException("not connected"));
+        failQueued();
+    }
+
+    private void failQueued() {
+        WriteFuture f;
+        while ((f = queue.poll()) != null)
+            if(f != STOP)
+                f.fail(new IOException("not connected"));
+    }
+}
@@ -0,0 +1,79 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * append-only overflow file for read data that does not fit into memory
+ * while the UI is detached. Data is read back by position, then the file is reset.
+ *
+ * Each chunk is stored as one record with its length in front, so records framed by
+ * LineFramer or FrameCodec are read back with the same boundaries.
+ */
+final class SpillFile {
+
+    static final int RECORD_HEADER = 4;
+
+    private final File file;
+    private final byte[] header = new byte[RECORD_HEADER];
+    private RandomAccessFile raf;
+    private long length;
+
+    SpillFile(File file) {
+        this.file = file;
+    }
+
+    long length() {
+        return length;
+    }
+
+    /**
+     * append data as one record
+     */
+    synchronized void appendRecord(byte[] data, int off, int len) throws IOException {
+        if(raf == null) {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+            length = 0;
+        }
+        header[0] = (byte) (len >>> 24);
+        header[1] = (byte) (len >>> 16);
+        header[2] = (byte) (len >>> 8);
+        header[3] = (byte) len;
+        raf.seek(length);
+        raf.write(header);
+        raf.write(data, off, len);
+        length += RECORD_HEADER + len;
+    }
+
+    /**
+     * read the record at position, the next record starts at position + RECORD_HEADER + length
+     * @return length of the record, -1 at end of file
+     * @throws IOException also if the record does not fit into buf
+     */
+    synchronized int readRecord(long position, byte[] buf) throws IOException {
+        if(raf == null || position >= length)
+            return -1;
+        raf.seek(position);
+        raf.readFully(header);
+        int len = (header[0] & 0xff) << 24 | (header[1] & 0xff) << 16 | (header[2] & 0xff) << 8 | (header[3] & 0xff);
+        if(len < 0 || len > buf.length || position + RECORD_HEADER + len > length)
+            throw new IOException("spill file corrupt");
+        raf.readFully(buf, 0, len);
+        return len;
+    }
+
+    synchronized void reset() {
+        if(raf != null) {
+            try {
+                raf.close();
+            } catch (IOException ignored) {
+            }
+            raf = null;
+        }
+        length = 0;
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
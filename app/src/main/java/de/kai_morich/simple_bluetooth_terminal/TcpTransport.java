@@ -0,0 +1,76 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * TCP stand-in for RFCOMM, e.g. to a device simulator on localhost
+ */
+class TcpTransport implements SerialTransport {
+
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    private final String host;
+    private final int port;
+    private volatile Socket socket;
+
+    TcpTransport(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public String getName() {
+        return host + ":" + port;
+    }
+
+    @Override
+    public void open() {
+        // nothing to reset
+    }
+
+    @Override
+    public void connect() throws IOException {
+        Socket socket = new Socket();
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+    }
+
+    @Override
+    public ConnectPath getConnectPath() {
+        return ConnectPath.Direct;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return socket().getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return socket().getOutputStream();
+    }
+
+    @Override
+    public void close() {
+        Socket socket = this.socket;
+        this.socket = null;
+        if(socket != null) {
+            try {
+                socket.close();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    private Socket socket() throws IOException {
+        Socket socket = this.socket;
+        if(socket == null)
+            throw new IOException("not connected");
+        return socket;
+    }
+}
@@ -3,19 +3,19 @@ package de.kai_morich.simple_bluetooth_terminal;
 import android.Manifest;
 import android.app.Activity;
 import android.app.AlertDialog;
-// --- IMPORTACIONES MODIFICADAS ---
-import android.os.Handler;
-import android.os.Looper;
-// --- FIN MODIFICADAS ---
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.provider.Settings;
 import android.text.Editable;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
@@ -29,6 +29,7 @@ import android.view.View;
 import android.view.ViewGroup;
 // Importamos los nuevos elementos de la UI
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.NumberPicker;
 import android.widget.TextView;
 import android.widget.TimePicker;
@@ -36,18 +37,27 @@ import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.appcompat.widget.SearchView;
 import androidx.fragment.app.Fragment;
 
+import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Calendar; // <-- AÑADIDO
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.PatternSyntaxException;
 
 public class TerminalFragment extends Fragment implements ServiceConnection, SerialListener {
 
     private enum Connected {False, Pending, True}
 
+    private static final int MAX_RECEIVE_BYTES = 16 * 1024 * 1024;
+    private static final int MAX_RECEIVE_LINES = 256 * 1024;
+
     private String deviceAddress;
     private SerialService service;
+    private SerialSession session; // conexión con deviceAddress, el servicio puede tener otras
 
     // --- Elementos de UI Antiguos (Eliminados) ---
     // private TextView receiveText;
@@ -59,15 +69,25 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
     private NumberPicker waitTimePicker;
     private Button setAlarmButton;
     private Button stopButton;
+    private CheckBox repeatCheck;
+
+    // --- Registro de datos recibidos, se conserva al rotar (setRetainInstance) ---
+    private final LineStore receiveLines = new LineStore(MAX_RECEIVE_BYTES, MAX_RECEIVE_LINES);
+    private ReceiveAdapter receiveAdapter;
+
+    // --- Búsqueda en el historial, en un hilo de fondo ---
+    private ExecutorService searchExecutor;
+    private LineSearch lineSearch;
+    private String searchQuery;
+    private boolean searchRegex;
 
     private Connected connected = Connected.False;
     private boolean initialStart = true;
     // private boolean hexEnabled = false; // Ya no necesitamos esto
     // private String newline = TextUtil.newline_crlf; // Ya no necesitamos esto
 
-    // --- NUEVO: Handler para el temporizador ---
-    private Handler alarmHandler;
-    private Runnable alarmRunnable;
+    // --- Alarmas persistentes con AlarmManager (sobreviven al cierre de la app) ---
+    private AlarmScheduler alarmScheduler;
 
     /*
      * Lifecycle
@@ -78,35 +98,37 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
         setHasOptionsMenu(true);
         setRetainInstance(true);
         deviceAddress = getArguments().getString("device");
-        // Inicializamos el Handler
-        alarmHandler = new Handler(Looper.getMainLooper());
+        alarmScheduler = new AlarmScheduler(getActivity());
+        searchExecutor = Executors.newSingleThreadExecutor();
+        lineSearch = new LineSearch(receiveLines, searchExecutor, new Handler(Looper.getMainLooper())::post, this::onSearchResult);
     }
 
     @Override
     public void onDestroy() {
         if (connected != Connected.False)
             disconnect();
-        // Limpiamos el temporizador si salimos
-        if(alarmHandler != null && alarmRunnable != null) {
-            alarmHandler.removeCallbacks(alarmRunnable);
-        }
-        getActivity().stopService(new Intent(getActivity(), SerialService.class));
+        // Las alarmas programadas siguen activas, AlarmReceiver reconecta al dispararse
+        // El servicio sigue si hay otros dispositivos conectados
+        if (service == null || !service.hasConnectedSessions())
+            getActivity().stopService(new Intent(getActivity(), SerialService.class));
+        lineSearch.setQuery(null, false);
+        searchExecutor.shutdownNow();
         super.onDestroy();
     }
 
     @Override
     public void onStart() {
         super.onStart();
-        if (service != null)
-            service.attach(this);
+        if (session != null)
+            session.attach(this);
         else
             getActivity().startService(new Intent(getActivity(), SerialService.class)); // prevents service destroy on unbind from recreated activity caused by orientation change
     }
 
     @Override
     public void onStop() {
-        if (service != null && !getActivity().isChangingConfigurations())
-            service.detach();
+        if (session != null && !getActivity().isChangingConfigurations())
+            session.detach();
         super.onStop();
     }
 
@@ -139,7 +161,9 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
     @Override
     public void onServiceConnected(ComponentName name, IBinder binder) {
         service = ((SerialService.SerialBinder) binder).getService();
-        service.attach(this);
+        session = service.getSession(deviceAddress);
+        session.attach(this);
+        session.setNextAlarmTime(alarmScheduler.getNextTime(deviceAddress));
         if (initialStart && isResumed()) {
             initialStart = false;
             getActivity().runOnUiThread(this::connect);
@@ -149,6 +173,7 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
     @Override
     public void onServiceDisconnected(ComponentName name) {
         service = null;
+        session = null;
     }
 
     /*
@@ -164,6 +189,9 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
         waitTimePicker = view.findViewById(R.id.wait_time_picker);
         setAlarmButton = view.findViewById(R.id.set_alarm_button);
         stopButton = view.findViewById(R.id.stop_button);
+        repeatCheck = view.findViewById(R.id.repeat_check);
+        receiveAdapter = new ReceiveAdapter(getActivity(), receiveLines);
+        receiveAdapter.attach(view.findViewById(R.id.receive_list));
 
         // --- Configuración Inicial ---
         alarmTimePicker.setIs24HourView(true); // Formato 24h
@@ -178,15 +206,25 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
         // El botón STOP ahora también cancela la alarma programada
         stopButton.setOnClickListener(v -> {
             send("STOP");
-            if(alarmHandler != null && alarmRunnable != null) {
-                alarmHandler.removeCallbacks(alarmRunnable);
-                Toast.makeText(getActivity(), "Alarma programada cancelada", Toast.LENGTH_SHORT).show();
+            if(alarmScheduler.getNextTime(deviceAddress) != 0) {
+                alarmScheduler.removeAll(deviceAddress);
+                if(session != null)
+                    session.setNextAlarmTime(alarmScheduler.getNextTime(deviceAddress));
+                Toast.makeText(getActivity(), "Alarmas programadas canceladas", Toast.LENGTH_SHORT).show();
             }
         });
 
         return view;
     }
 
+    @Override
+    public void onDestroyView() {
+        search(null); // el menú con la búsqueda se crea de nuevo
+        receiveAdapter.detach();
+        receiveAdapter = null;
+        super.onDestroyView();
+    }
+
     // --- Lógica de la Alarma (AHORA ES SIMPLE) ---
     private void setAlarm() {
         // 1. Obtener la hora y minutos del TimePicker
@@ -201,46 +239,27 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
 
         // 2. Obtener los minutos de espera del NumberPicker
         int waitMinutes = waitTimePicker.getValue();
-        final String command = "START " + waitMinutes; // 'final' para usarlo en el Runnable
+        final String command = "START " + waitMinutes;
         final String timeString = String.format("%02d:%02d", hour, minute);
 
-        // 3. Configurar un Calendario para la hora de la alarma
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTimeInMillis(System.currentTimeMillis());
-        calendar.set(Calendar.HOUR_OF_DAY, hour);
-        calendar.set(Calendar.MINUTE, minute);
-        calendar.set(Calendar.SECOND, 0);
-
-        // Si la hora ya pasó hoy, programarla para mañana
-        if (calendar.getTimeInMillis() <= System.currentTimeMillis()) {
-            calendar.add(Calendar.DAY_OF_YEAR, 1);
-        }
-
-        // 4. Calcular el delay (retraso) en milisegundos
-        long targetTimeMs = calendar.getTimeInMillis();
-        long currentTimeMs = System.currentTimeMillis();
-        long delayMs = targetTimeMs - currentTimeMs;
-
-        // 5. Cancelar cualquier alarma anterior
-        if(alarmHandler != null && alarmRunnable != null) {
-            alarmHandler.removeCallbacks(alarmRunnable);
+        // 3. Sin permiso de alarmas exactas la alarma puede llegar tarde, pedirlo
+        if (!alarmScheduler.canScheduleExactAlarms() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            Toast.makeText(getActivity(), "Permitir alarmas exactas para enviar a la hora", Toast.LENGTH_LONG).show();
+            startActivity(new Intent(Settings.ACTION_REQUEST_SCHEDULE_EXACT_ALARM, Uri.parse("package:" + getActivity().getPackageName())));
         }
 
-        // 6. Crear el "Runnable" (la acción que se ejecutará)
-        alarmRunnable = new Runnable() {
-            @Override
-            public void run() {
-                // Esto se ejecuta cuando se cumple el tiempo
-                Toast.makeText(getActivity(), "Alarma de las " + timeString + " activada", Toast.LENGTH_LONG).show();
-                send(command);
-            }
-        };
+        // 4. Programar con AlarmManager, se guarda y sobrevive reinicios.
+        //    Al dispararse, AlarmReceiver pasa el comando al SerialService
+        int days = repeatCheck.isChecked() ? AlarmScheduler.EVERY_DAY : 0;
+        alarmScheduler.add(hour, minute, days, command, deviceAddress);
 
-        // 7. Programar el Handler
-        alarmHandler.postDelayed(alarmRunnable, delayMs);
+        // 5. el servicio mantiene la conexión lista antes de la próxima alarma
+        if(session != null)
+            session.setNextAlarmTime(alarmScheduler.getNextTime(deviceAddress));
 
-        // 8. Informar al usuario
-        Toast.makeText(getActivity(), "Alarma BreakFAST programada para las " + timeString, Toast.LENGTH_LONG).show();
+        // 6. Informar al usuario
+        Toast.makeText(getActivity(), "Alarma BreakFAST programada para las " + timeString
+                + (days != 0 ? " (todos los días)" : ""), Toast.LENGTH_LONG).show();
     }
 
     @Override
@@ -249,6 +268,40 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
         // Ocultamos los botones que ya no usamos
         // menu.findItem(R.id.hex).setVisible(false);
         // menu.findItem(R.id.newline).setVisible(false);
+        MenuItem searchItem = menu.findItem(R.id.search);
+        SearchView searchView = (SearchView) searchItem.getActionView();
+        searchView.setQueryHint("Buscar en lo recibido");
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                return false;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String query) {
+                search(query); // cancela la búsqueda anterior
+                return true;
+            }
+        });
+        searchItem.setOnActionExpandListener(new MenuItem.OnActionExpandListener() {
+            @Override
+            public boolean onMenuItemActionExpand(MenuItem item) {
+                return true;
+            }
+
+            @Override
+            public boolean onMenuItemActionCollapse(MenuItem item) {
+                search(null);
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public void onPrepareOptionsMenu(@NonNull Menu menu) {
+        menu.findItem(R.id.capture).setChecked(session != null && session.isCapturing());
+        menu.findItem(R.id.sequenced).setChecked(session != null && session.isSequencedCommands());
+        menu.findItem(R.id.search_regex).setChecked(searchRegex);
     }
 
     @Override
@@ -259,6 +312,29 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
             Toast.makeText(getActivity(), "Enviando STOP...", Toast.LENGTH_SHORT).show();
             send("STOP");
             return true;
+        } else if (id == R.id.search_regex) {
+            searchRegex = !searchRegex;
+            item.setChecked(searchRegex);
+            search(searchQuery);
+            return true;
+        } else if (id == R.id.capture) {
+            // graba todo el tráfico RX/TX en archivos binarios, ver CaptureLog
+            if (session != null) {
+                try {
+                    session.setCapture(!item.isChecked());
+                    item.setChecked(session.isCapturing());
+                } catch (IOException e) {
+                    Toast.makeText(getActivity(), "Error al grabar: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+                }
+            }
+            return true;
+        } else if (id == R.id.sequenced) {
+            // solo para dispositivos que confirman con "ACK 12", como server.py
+            if (session != null) {
+                session.setSequencedCommands(!item.isChecked());
+                item.setChecked(session.isSequencedCommands());
+            }
+            return true;
         } else if (id == R.id.backgroundNotification) {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
                 if (!service.areNotificationsEnabled() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
@@ -283,7 +359,7 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
             status("conectando...");
             connected = Connected.Pending;
             SerialSocket socket = new SerialSocket(getActivity().getApplicationContext(), device);
-            service.connect(socket);
+            session.connect(socket);
         } catch (Exception e) {
             onSerialConnectError(e); // <-- ESTA LÍNEA AHORA FUNCIONA
         }
@@ -291,7 +367,7 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
 
     private void disconnect() {
         connected = Connected.False;
-        service.disconnect();
+        session.disconnect();
     }
 
     // --- FUNCIÓN SEND (SIMPLIFICADA) ---
@@ -302,28 +378,74 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
             return;
         }
         try {
-            // Añadimos un salto de línea "\n" para que bluedot lo reconzca
-            String msg = str + "\n";
-            byte[] data = msg.getBytes();
-            service.write(data);
+            // el servicio añade el salto de línea "\n" (o arma el frame binario)
+            session.writeCommand(str);
+            appendLine(str, LineStore.KIND_SEND);
+            publishLines();
         } catch (Exception e) {
             onSerialIoError(e);
         }
     }
 
-    // --- FUNCIONES RECEIVE y STATUS (MODIFICADAS) ---
-    // Ya no tenemos el 'receiveText', así que solo imprimimos a la consola
-    private void receive(ArrayDeque<byte[]> datas) {
-        for (byte[] data : datas) {
-            String msg = new String(data);
-            System.out.println("BT_RECEIVE: " + msg);
+    // --- FUNCIONES RECEIVE y STATUS ---
+    // Con line framing del servicio cada chunk es una línea. Se guardan los bytes,
+    // el texto se decodifica solo para las líneas visibles.
+    // Se actualiza la lista una vez por lote.
+    private void receive(ArrayDeque<ChunkPool.Chunk> datas) {
+        for (ChunkPool.Chunk data : datas) {
+            if (receiveAdapter != null)
+                receiveAdapter.append(data.data, 0, data.length, LineStore.KIND_RECEIVE);
+            else
+                receiveLines.append(data.data, 0, data.length, LineStore.KIND_RECEIVE);
         }
+        publishLines();
     }
 
     private void status(String str) {
-        // En lugar de escribir en la app, mostramos un "Toast"
         Toast.makeText(getActivity(), str, Toast.LENGTH_SHORT).show();
-        System.out.println("BT_STATUS: " + str);
+        appendLine(str, LineStore.KIND_STATUS);
+        publishLines();
+    }
+
+    private void appendLine(String line, int kind) {
+        if (receiveAdapter != null)
+            receiveAdapter.append(line, kind);
+        else
+            receiveLines.append(line, kind); // sin vista, se muestra al volver
+    }
+
+    private void publishLines() {
+        if (receiveAdapter != null)
+            receiveAdapter.publish();
+        lineSearch.onLinesAppended(); // busca solo en las líneas nuevas
+    }
+
+    // --- Búsqueda: texto o regex, la lista muestra solo las coincidencias ---
+    private void search(String query) {
+        searchQuery = query;
+        try {
+            lineSearch.setQuery(query, searchRegex);
+        } catch (PatternSyntaxException e) {
+            lineSearch.setQuery(null, false);
+            if (receiveAdapter != null)
+                receiveAdapter.setFilter(true); // sin coincidencias
+            setSubtitle("regex inválida");
+            return;
+        }
+        if (receiveAdapter != null)
+            receiveAdapter.setFilter(lineSearch.isSearching());
+        setSubtitle(lineSearch.isSearching() ? "buscando..." : null);
+    }
+
+    private void onSearchResult(long[] matches, int count, int total, boolean complete) {
+        if (receiveAdapter != null)
+            receiveAdapter.addFilterMatches(matches, count);
+        setSubtitle(total + " coincidencias" + (complete ? "" : "..."));
+    }
+
+    private void setSubtitle(String subtitle) {
+        if (getActivity() instanceof AppCompatActivity && ((AppCompatActivity) getActivity()).getSupportActionBar() != null)
+            ((AppCompatActivity) getActivity()).getSupportActionBar().setSubtitle(subtitle);
     }
 
     /*
@@ -362,21 +484,36 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
 
     // --- MÉTODO FALTANTE AÑADIDO (CORRIGE ERROR 1) ---
     @Override
-    public void onSerialRead(byte[] data) {
+    public void onSerialRead(ChunkPool.Chunk data) {
         // Simplemente pasa los datos al otro método onSerialRead
-        ArrayDeque<byte[]> datas = new ArrayDeque<>();
+        ArrayDeque<ChunkPool.Chunk> datas = new ArrayDeque<>();
         datas.add(data);
         receive(datas); // Llama a la función 'receive' que ya modificamos
     }
 
+    @Override
+    public void onSerialReadIdle() {
+        // solo entre socket y servicio, las líneas ya llegan completas
+    }
+
     @Override
     public void onSerialIoError(Exception e) {
+        // el servicio reconecta, ver onSerialStateChange
         status("Conexión perdida: " + e.getMessage());
-        disconnect();
+    }
+
+    @Override
+    public void onSerialStateChange(SerialSession.ConnectionState state) {
+        switch (state) {
+            case Connected:    connected = Connected.True; break;
+            case Connecting:   connected = Connected.Pending; break;
+            case Backoff:      connected = Connected.Pending; status("reconectando..."); break;
+            case Disconnected: connected = Connected.False; break;
+        }
     }
 
     @Override // Este método ya estaba, lo moví para agrupar
-    public void onSerialRead(ArrayDeque<byte[]> datas) {
+    public void onSerialRead(ArrayDeque<ChunkPool.Chunk> datas) {
         receive(datas);
     }
 }
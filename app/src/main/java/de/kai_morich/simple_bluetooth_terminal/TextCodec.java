@@ -0,0 +1,211 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * hex and caret conversion without Android dependencies, used by TextUtil.
+ * Kept separate so the benchmark module can run it on a plain JVM.
+ */
+final class TextCodec {
+
+    interface CaretListener {
+        void onCaret(int start, int end);
+    }
+
+    private static final char[] HEX_PAIRS = new char[2 * 256];   // "00" .. "FF"
+    private static final char[] CARET_PAIRS = new char[2 * 32];  // "^@" .. "^_"
+
+    static {
+        final char[] digits = "0123456789ABCDEF".toCharArray();
+        for(int i = 0; i < 256; i++) {
+            HEX_PAIRS[2 * i] = digits[i >>> 4];
+            HEX_PAIRS[2 * i + 1] = digits[i & 0xf];
+        }
+        for(int i = 0; i < 32; i++) {
+            CARET_PAIRS[2 * i] = '^';
+            CARET_PAIRS[2 * i + 1] = (char) (i + 64);
+        }
+    }
+
+    static byte[] fromHexString(final CharSequence s) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        byte b = 0;
+        int nibble = 0;
+        for(int pos = 0; pos<s.length(); pos++) {
+            if(nibble==2) {
+                buf.write(b);
+                nibble = 0;
+                b = 0;
+            }
+            int c = s.charAt(pos);
+            if(c>='0' && c<='9') { nibble++; b *= 16; b += c-'0';    }
+            if(c>='A' && c<='F') { nibble++; b *= 16; b += c-'A'+10; }
+            if(c>='a' && c<='f') { nibble++; b *= 16; b += c-'a'+10; }
+        }
+        if(nibble>0)
+            buf.write(b);
+        return buf.toByteArray();
+    }
+
+    /**
+     * append bytes as upper case hex, separated by space.
+     * A space is also inserted before the first byte if sb is not empty.
+     */
+    static void toHexString(StringBuilder sb, final byte[] buf, int begin, int end) {
+        if(begin >= end)
+            return;
+        sb.ensureCapacity(sb.length() + 3 * (end - begin));
+        int pos = begin;
+        if(sb.length() == 0) {
+            int i = (buf[pos++] & 0xff) << 1;
+            sb.append(HEX_PAIRS[i]).append(HEX_PAIRS[i + 1]);
+        }
+        for(; pos < end; pos++) {
+            int i = (buf[pos] & 0xff) << 1;
+            sb.append(' ').append(HEX_PAIRS[i]).append(HEX_PAIRS[i + 1]);
+        }
+    }
+
+    /**
+     * write bytes as upper case hex, separated by space, into a reusable buffer
+     * @param separator write a space before the first byte
+     * @return number of chars written, at most 3 * (end - begin)
+     */
+    static int toHexChars(final byte[] buf, int begin, int end, char[] dst, int offset, boolean separator) {
+        int d = offset;
+        for(int pos = begin; pos < end; pos++) {
+            int i = (buf[pos] & 0xff) << 1;
+            if(separator)
+                dst[d++] = ' ';
+            separator = true;
+            dst[d++] = HEX_PAIRS[i];
+            dst[d++] = HEX_PAIRS[i + 1];
+        }
+        return d - offset;
+    }
+
+    static boolean isCaret(char c, boolean keepNewline) {
+        return c < 32 && (!keepNewline || c != '\n');
+    }
+
+    static boolean hasCaret(CharSequence s, boolean keepNewline, int length) {
+        return indexOfCaret(s, keepNewline, 0, length) >= 0;
+    }
+
+    /**
+     * @return position of the first control character in [start, length), else -1
+     */
+    static int indexOfCaret(CharSequence s, boolean keepNewline, int start, int length) {
+        for (int pos = start; pos < length; pos++) {
+            if (isCaret(s.charAt(pos), keepNewline))
+                return pos;
+        }
+        return -1;
+    }
+
+    /**
+     * append s to sb in caret notation, listener is called once per run of caret sequences
+     */
+    static <T extends Appendable & CharSequence> T toCaretString(T sb, CharSequence s, boolean keepNewline, int length, CaretListener listener) {
+        return toCaretString(sb, s, keepNewline, 0, length, listener);
+    }
+
+    /**
+     * like above, but only from start, e.g. the result of indexOfCaret(), so s is scanned once.
+     * Text between control characters is appended in one piece.
+     */
+    static <T extends Appendable & CharSequence> T toCaretString(T sb, CharSequence s, boolean keepNewline, int start, int length, CaretListener listener) {
+        try {
+            int pos = start;
+            while (pos < length) {
+                int caret = indexOfCaret(s, keepNewline, pos, length);
+                if(caret < 0)
+                    caret = length;
+                if(caret > pos)
+                    sb.append(s, pos, caret);
+                if(caret == length)
+                    break;
+                int runStart = sb.length();
+                for(pos = caret; pos < length && isCaret(s.charAt(pos), keepNewline); pos++) {
+                    int i = s.charAt(pos) << 1;
+                    sb.append(CARET_PAIRS[i]).append(CARET_PAIRS[i + 1]);
+                }
+                listener.onCaret(runStart, sb.length());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // not thrown by StringBuilder and Editable
+        }
+        return sb;
+    }
+
+    /**
+     * upper case hex digits in groups of 2, other characters removed
+     */
+    static void formatHex(CharSequence s, StringBuilder sb) {
+        sb.setLength(0);
+        appendHex(s, 0, s.length(), sb, 0);
+    }
+
+    /**
+     * formatHex() after an edit of text previously formatted by it, as reported by
+     * TextWatcher.onTextChanged(): s[start, start+count) replaced before chars.
+     *
+     * Only the changed region is formatted, and the rest of s if its grouping changed,
+     * i.e. an odd number of digits was added or removed. Typing costs O(1), pasting O(paste + rest).
+     * @param sb set to the replacement for s[range[0], range[1])
+     * @return false if s is already formatted
+     */
+    static boolean formatHex(CharSequence s, int start, int before, int count, StringBuilder sb, int[] range) {
+        int from = start - start % 3; // start of group, s[0, from) ends with space
+        int to = start + count;
+        int oldTail = start + before; // position of s[to] before the edit
+        int end = s.length();
+        sb.setLength(0);
+        int digits = appendHex(s, from, to, sb, from / 3 * 2);
+        if(to < end && (digits - (oldTail - oldTail / 3)) % 2 == 0) { // rest unchanged, join with it
+            end = to;
+            if(s.charAt(to) == ' ') {
+                if(sb.length() == 0)
+                    end++; // no space after prefix
+            } else if(digits % 2 == 0 && sb.length() > 0) {
+                sb.append(' ');
+            }
+        } else {
+            appendHex(s, to, end, sb, digits);
+        }
+        if(end == s.length() && sb.length() == 0 && from > 0)
+            from--; // trailing space
+        range[0] = from;
+        range[1] = end;
+        if(end - from != sb.length())
+            return true;
+        for(int i = 0; i < sb.length(); i++)
+            if(sb.charAt(i) != s.charAt(from + i))
+                return true;
+        return false;
+    }
+
+    /**
+     * append hex digits from s[begin, end) in upper case, with a space before each group
+     * of 2 except at the start of sb
+     * @param digits number of digits before begin, for grouping
+     * @return digits including the appended ones
+     */
+    private static int appendHex(CharSequence s, int begin, int end, StringBuilder sb, int digits) {
+        for(int i = begin; i < end; i++) {
+            char c = s.charAt(i);
+            if(c >= 'a' && c <= 'f')
+                c += 'A' - 'a';
+            else if(!(c >= '0' && c <= '9') && !(c >= 'A' && c <= 'F'))
+                continue;
+            if(digits % 2 == 0 && sb.length() > 0)
+                sb.append(' ');
+            sb.append(c);
+            digits++;
+        }
+        return digits;
+    }
+
+    private TextCodec() {}
+}
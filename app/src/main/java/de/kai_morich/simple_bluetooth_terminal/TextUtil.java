@@ -4,14 +4,13 @@ import android.text.Editable;
 import android.text.InputType;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
+import android.text.TextUtils;
 import android.text.TextWatcher;
 import android.text.style.BackgroundColorSpan;
 import android.widget.TextView;
 
 import androidx.annotation.ColorInt;
 
-import java.io.ByteArrayOutputStream;
-
 final class TextUtil {
 
     @ColorInt static int caretBackground = 0xff666666;
@@ -20,23 +19,7 @@ final class TextUtil {
     final static String newline_lf = "\n";
 
     static byte[] fromHexString(final CharSequence s) {
-        ByteArrayOutputStream buf = new ByteArrayOutputStream();
-        byte b = 0;
-        int nibble = 0;
-        for(int pos = 0; pos<s.length(); pos++) {
-            if(nibble==2) {
-                buf.write(b);
-                nibble = 0;
-                b = 0;
-            }
-            int c = s.charAt(pos);
-            if(c>='0' && c<='9') { nibble++; b *= 16; b += c-'0';    }
-            if(c>='A' && c<='F') { nibble++; b *= 16; b += c-'A'+10; }
-            if(c>='a' && c<='f') { nibble++; b *= 16; b += c-'a'+10; }
-        }
-        if(nibble>0)
-            buf.write(b);
-        return buf.toByteArray();
+        return TextCodec.fromHexString(s);
     }
 
     static String toHexString(final byte[] buf) {
@@ -44,9 +27,10 @@ final class TextUtil {
     }
 
     static String toHexString(final byte[] buf, int begin, int end) {
-        StringBuilder sb = new StringBuilder(3*(end-begin));
-        toHexString(sb, buf, begin, end);
-        return sb.toString();
+        if(begin >= end)
+            return "";
+        char[] chars = new char[3*(end-begin)];
+        return new String(chars, 0, TextCodec.toHexChars(buf, begin, end, chars, 0, false));
     }
 
     static void toHexString(StringBuilder sb, final byte[] buf) {
@@ -54,19 +38,7 @@ final class TextUtil {
     }
 
     static void toHexString(StringBuilder sb, final byte[] buf, int begin, int end) {
-        for(int pos=begin; pos<end; pos++) {
-            if(sb.length()>0)
-                sb.append(' ');
-            int c;
-            c = (buf[pos]&0xff) / 16;
-            if(c >= 10) c += 'A'-10;
-            else        c += '0';
-            sb.append((char)c);
-            c = (buf[pos]&0xff) % 16;
-            if(c >= 10) c += 'A'-10;
-            else        c += '0';
-            sb.append((char)c);
-        }
+        TextCodec.toHexString(sb, buf, begin, end);
     }
 
     /**
@@ -76,35 +48,32 @@ final class TextUtil {
         return toCaretString(s, keepNewline, s.length());
     }
 
+    /**
+     * s is scanned once, one span per run of control characters
+     */
     static CharSequence toCaretString(CharSequence s, boolean keepNewline, int length) {
-        boolean found = false;
-        for (int pos = 0; pos < length; pos++) {
-            if (s.charAt(pos) < 32 && (!keepNewline ||s.charAt(pos)!='\n')) {
-                found = true;
-                break;
-            }
-        }
-        if(!found)
+        int first = TextCodec.indexOfCaret(s, keepNewline, 0, length);
+        if(first < 0)
             return s;
         SpannableStringBuilder sb = new SpannableStringBuilder();
-        for(int pos=0; pos<length; pos++)
-            if (s.charAt(pos) < 32 && (!keepNewline ||s.charAt(pos)!='\n')) {
-                sb.append('^');
-                sb.append((char)(s.charAt(pos) + 64));
-                sb.setSpan(new BackgroundColorSpan(caretBackground), sb.length()-2, sb.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-            } else {
-                sb.append(s.charAt(pos));
-            }
-        return sb;
+        sb.append(s, 0, first);
+        return TextCodec.toCaretString(sb, s, keepNewline, first, length, (start, end) ->
+                sb.setSpan(new BackgroundColorSpan(caretBackground), start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE));
     }
 
 
+    /**
+     * keeps hex input formatted while typing. Each edit only reformats the changed region,
+     * see TextCodec.formatHex(), and replaces it in one Editable.replace()
+     */
     static class HexWatcher implements TextWatcher {
 
         private final TextView view;
         private final StringBuilder sb = new StringBuilder();
+        private final int[] range = new int[2];
         private boolean self = false;
         private boolean enabled = false;
+        private int changeStart, changeBefore, changeCount;
 
         HexWatcher(TextView view) {
             this.view = view;
@@ -113,6 +82,12 @@ final class TextUtil {
         void enable(boolean enable) {
             if(enable) {
                 view.setInputType(InputType.TYPE_CLASS_TEXT + InputType.TYPE_TEXT_VARIATION_VISIBLE_PASSWORD);
+                TextCodec.formatHex(view.getText(), sb); // edits expect formatted text
+                if(!TextUtils.equals(sb, view.getText())) {
+                    self = true;
+                    view.setText(sb);
+                    self = false;
+                }
             } else {
                 view.setInputType(InputType.TYPE_CLASS_TEXT + InputType.TYPE_TEXT_FLAG_NO_SUGGESTIONS);
             }
@@ -125,6 +100,9 @@ final class TextUtil {
 
         @Override
         public void onTextChanged(CharSequence s, int start, int before, int count) {
+            changeStart = start;
+            changeBefore = before;
+            changeCount = count;
         }
 
         @Override
@@ -132,21 +110,9 @@ final class TextUtil {
             if(!enabled || self)
                 return;
 
-            sb.delete(0,sb.length());
-            int i;
-            for(i=0; i<s.length(); i++) {
-                char c = s.charAt(i);
-                if(c >= '0' && c <= '9') sb.append(c);
-                if(c >= 'A' && c <= 'F') sb.append(c);
-                if(c >= 'a' && c <= 'f') sb.append((char)(c+'A'-'a'));
-            }
-            for(i=2; i<sb.length(); i+=3)
-                sb.insert(i,' ');
-            final String s2 = sb.toString();
-
-            if(!s2.equals(s.toString())) {
+            if(TextCodec.formatHex(s, changeStart, changeBefore, changeCount, sb, range)) {
                 self = true;
-                s.replace(0, s.length(), s2);
+                s.replace(range[0], range[1], sb);
                 self = false;
             }
         }
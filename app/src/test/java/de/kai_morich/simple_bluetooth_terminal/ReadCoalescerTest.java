@@ -0,0 +1,150 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * chunks added by the socket thread arrive complete and in order in the UI thread,
+ * also when the ring wraps, runs full, or the UI detaches meanwhile
+ */
+public class ReadCoalescerTest {
+
+    private static final long COUNT = 64L * ReadCoalescer.CAPACITY;
+    private static final int TOGGLE_INTERVAL = 4096;
+
+    private final ExecutorService ui = Executors.newSingleThreadExecutor();
+    private final ChunkPool pool = new ChunkPool();
+    private final Random random = new Random(42); // only used in ui thread
+    private volatile long expected;
+    private volatile String failure;
+
+    @Test
+    public void orderAcrossRingWrap() throws Exception {
+        ReadCoalescer coalescer = new ReadCoalescer(ui, chunks -> {
+            for(ChunkPool.Chunk chunk : chunks)
+                check(chunk);
+            if(random.nextInt(64) == 0)
+                LockSupport.parkNanos(1_000_000); // slow UI update, the ring runs full
+            if(random.nextInt(8) == 0) {
+                ChunkPool.releaseAll(chunks);
+                return false; // consumer keeps the container
+            }
+            return true;
+        });
+        Thread producer = new Thread(() -> {
+            for(long seq = 0; seq < COUNT; seq++)
+                coalescer.add(chunk(seq));
+        });
+        producer.start();
+        producer.join(30000);
+        awaitReceived();
+    }
+
+    /**
+     * like SerialSession: while detached chunks go to queue2, drains end up in queue1,
+     * attach() replays queue1 then queue2
+     */
+    @Test
+    public void orderAcrossDetachAndAttach() throws Exception {
+        Session session = new Session();
+        Thread producer = new Thread(() -> {
+            boolean attached = true;
+            for(long seq = 0; seq < COUNT; seq++) {
+                session.read(chunk(seq));
+                if(seq % TOGGLE_INTERVAL == 0) {
+                    ui.execute(attached ? session::detach : session::attach);
+                    attached = !attached;
+                }
+            }
+            if(!attached)
+                ui.execute(session::attach);
+        });
+        producer.start();
+        producer.join(30000);
+        awaitReceived();
+    }
+
+    private class Session {
+        final ReadCoalescer coalescer = new ReadCoalescer(ui, this::onSerialReadMain);
+        final ArrayDeque<ChunkPool.Chunk> queue1 = new ArrayDeque<>(); // ui thread
+        final ArrayDeque<ChunkPool.Chunk> queue2 = new ArrayDeque<>(); // synchronized
+        volatile boolean attached = true;
+
+        void read(ChunkPool.Chunk chunk) {
+            if(attached) {
+                coalescer.add(chunk);
+                return;
+            }
+            synchronized (this) {
+                if(attached)
+                    coalescer.add(chunk);
+                else
+                    queue2.add(chunk);
+            }
+        }
+
+        private boolean onSerialReadMain(ArrayDeque<ChunkPool.Chunk> chunks) {
+            if(attached) {
+                for(ChunkPool.Chunk chunk : chunks)
+                    check(chunk);
+                return true;
+            }
+            queue1.addAll(chunks);
+            chunks.clear();
+            return true;
+        }
+
+        void detach() {
+            attached = false;
+            coalescer.drain();
+        }
+
+        void attach() {
+            coalescer.drain();
+            synchronized (this) {
+                attached = true;
+            }
+            for(ChunkPool.Chunk chunk : queue1)
+                check(chunk);
+            for(ChunkPool.Chunk chunk : queue2)
+                check(chunk);
+            ChunkPool.releaseAll(queue1);
+            ChunkPool.releaseAll(queue2);
+        }
+    }
+
+    private ChunkPool.Chunk chunk(long seq) {
+        ChunkPool.Chunk chunk = pool.obtain(8);
+        for(int i = 0; i < 8; i++)
+            chunk.data[i] = (byte) (seq >>> (56 - 8 * i));
+        chunk.length = 8;
+        return chunk;
+    }
+
+    private void check(ChunkPool.Chunk chunk) {
+        long seq = 0;
+        for(int i = 0; i < 8; i++)
+            seq = (seq << 8) | (chunk.data[i] & 0xff);
+        if(seq != expected && failure == null)
+            failure = "expected chunk " + expected + ", got " + seq;
+        expected = seq + 1;
+    }
+
+    private void awaitReceived() throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (expected != COUNT && failure == null && System.currentTimeMillis() < end)
+            Thread.sleep(1);
+        ui.shutdown();
+        ui.awaitTermination(1, TimeUnit.SECONDS);
+        assertEquals(null, failure);
+        assertEquals(COUNT, expected);
+    }
+}
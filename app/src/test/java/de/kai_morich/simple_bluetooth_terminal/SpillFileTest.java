@@ -0,0 +1,65 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SpillFileTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * framed lines spilled one record per line are replayed as the same lines,
+     * not glued together into blocks
+     */
+    @Test
+    public void replayKeepsLineBoundaries() throws IOException {
+        StringBuilder longLine = new StringBuilder();
+        for(int i = 0; i < 3000; i++)
+            longLine.append((char) ('a' + i % 26));
+        byte[] received = ("first\r\nsecond\n\nthird\r" + longLine + "\n").getBytes(UTF8);
+        List<String> expected = Arrays.asList("first", "second", "", "third", longLine.toString());
+
+        SpillFile spillFile = new SpillFile(new File(folder.getRoot(), "test.spill"));
+        LineFramer lineFramer = new LineFramer(4096);
+        for(int pos = 0; pos < received.length; pos += 7) // lines split across reads
+            lineFramer.feed(received, pos, Math.min(7, received.length - pos), (data, offset, length) -> {
+                try {
+                    spillFile.appendRecord(data, offset, length);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+
+        List<String> replayed = new ArrayList<>();
+        byte[] buf = new byte[ChunkPool.MAX_SIZE];
+        long position = 0;
+        int len;
+        while ((len = spillFile.readRecord(position, buf)) >= 0) {
+            replayed.add(new String(buf, 0, len, UTF8));
+            position += SpillFile.RECORD_HEADER + len;
+        }
+        assertEquals(expected, replayed);
+        assertEquals(spillFile.length(), position);
+        spillFile.reset();
+    }
+
+    @Test(expected = IOException.class)
+    public void recordLargerThanBuffer() throws IOException {
+        SpillFile spillFile = new SpillFile(new File(folder.getRoot(), "test.spill"));
+        spillFile.appendRecord(new byte[100], 0, 100);
+        spillFile.readRecord(0, new byte[50]);
+    }
+}
@@ -0,0 +1,141 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * table driven and incremental conversions give the same results as the
+ * previous per character implementations, kept here as reference
+ */
+public class TextCodecTest {
+
+    private static final int[] LENGTHS = {0, 1, 2, 3, 17, 1024};
+
+    @Test
+    public void hexMatchesReference() {
+        Random random = new Random(42);
+        for(int length : LENGTHS) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            for(String prefix : new String[]{"", "x"}) {
+                StringBuilder expected = new StringBuilder(prefix);
+                StringBuilder actual = new StringBuilder(prefix);
+                referenceHexString(expected, data, 0, length);
+                TextCodec.toHexString(actual, data, 0, length);
+                assertEquals("toHexString " + length, expected.toString(), actual.toString());
+                char[] chars = new char[3 * length];
+                int n = TextCodec.toHexChars(data, 0, length, chars, 0, !prefix.isEmpty());
+                assertEquals("toHexChars " + length, expected.substring(prefix.length()), new String(chars, 0, n));
+            }
+            StringBuilder hex = new StringBuilder();
+            TextCodec.toHexString(hex, data, 0, length);
+            assertArrayEquals("fromHexString " + length, data, TextCodec.fromHexString(hex));
+        }
+    }
+
+    @Test
+    public void caretMatchesReference() {
+        Random random = new Random(42);
+        for(int length : LENGTHS) {
+            for(boolean keepNewline : new boolean[]{false, true}) {
+                String s = randomText(random, length);
+                BitSet expectedSpans = new BitSet(), actualSpans = new BitSet();
+                String expected = referenceCaretString(new StringBuilder(), s, keepNewline, expectedSpans).toString();
+                String actual = TextCodec.toCaretString(new StringBuilder(), s, keepNewline, s.length(), (start, end) -> {
+                    assertTrue("one span per run", end > start && (start == 0 || !actualSpans.get(start - 1)));
+                    actualSpans.set(start, end);
+                }).toString();
+                assertEquals("toCaretString " + length, expected, actual);
+                assertEquals("toCaretString spans " + length, expectedSpans, actualSpans);
+            }
+        }
+    }
+
+    @Test
+    public void formatHexMatchesReference() {
+        Random random = new Random(42);
+        for(int length : LENGTHS) {
+            String s = randomText(random, length);
+            StringBuilder expected = new StringBuilder(), actual = new StringBuilder();
+            referenceFormatHex(s, expected);
+            TextCodec.formatHex(s, actual);
+            assertEquals("formatHex " + length, expected.toString(), actual.toString());
+        }
+    }
+
+    /**
+     * random edits as done by TextUtil.HexWatcher, compared with formatting the whole text
+     */
+    @Test
+    public void incrementalFormatHex() {
+        Random random = new Random(42);
+        char[] digits = new char[1024];
+        for(int i = 0; i < digits.length; i++)
+            digits[i] = "0123456789abcdefx ".charAt(random.nextInt(18));
+        String paste = new String(digits);
+        StringBuilder text = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        StringBuilder sb = new StringBuilder();
+        int[] range = new int[2];
+        for(int i = 0; i < 500; i++) {
+            int start = random.nextInt(text.length() + 1);
+            int before = Math.min(random.nextInt(4), text.length() - start);
+            int from = random.nextInt(paste.length());
+            String insert = paste.substring(from, Math.min(paste.length(), from + (random.nextInt(3) == 0 ? random.nextInt(64) : random.nextInt(3))));
+            text.replace(start, start + before, insert);
+            if(TextCodec.formatHex(text, start, before, insert.length(), sb, range))
+                text.replace(range[0], range[1], sb.toString());
+            referenceFormatHex(text, expected);
+            assertEquals("edit " + i, expected.toString(), text.toString());
+        }
+    }
+
+    private static String randomText(Random random, int length) {
+        char[] chars = new char[length];
+        for(int i = 0; i < length; i++) {
+            int r = random.nextInt(4);
+            chars[i] = r == 0 ? (char) random.nextInt(32) : r == 1 ? '\n' : (char) (' ' + random.nextInt(95));
+        }
+        return new String(chars);
+    }
+
+    private static void referenceHexString(StringBuilder sb, byte[] buf, int begin, int end) {
+        for(int pos = begin; pos < end; pos++) {
+            if(sb.length() > 0)
+                sb.append(' ');
+            sb.append("0123456789ABCDEF".charAt((buf[pos] & 0xff) / 16));
+            sb.append("0123456789ABCDEF".charAt((buf[pos] & 0xff) % 16));
+        }
+    }
+
+    private static StringBuilder referenceCaretString(StringBuilder sb, CharSequence s, boolean keepNewline, BitSet spans) {
+        for(int pos = 0; pos < s.length(); pos++) {
+            char c = s.charAt(pos);
+            if(c < 32 && (!keepNewline || c != '\n')) {
+                sb.append('^').append((char) (c + 64));
+                spans.set(sb.length() - 2, sb.length());
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb;
+    }
+
+    private static void referenceFormatHex(CharSequence s, StringBuilder sb) {
+        sb.setLength(0);
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if(c >= '0' && c <= '9') sb.append(c);
+            if(c >= 'A' && c <= 'F') sb.append(c);
+            if(c >= 'a' && c <= 'f') sb.append((char) (c + 'A' - 'a'));
+        }
+        for(int i = 2; i < sb.length(); i += 3)
+            sb.insert(i, ' ');
+    }
+}
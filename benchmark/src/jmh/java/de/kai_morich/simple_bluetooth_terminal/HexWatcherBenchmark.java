@@ -0,0 +1,94 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TextUtil.HexWatcher edits, size is the number of hex digits in the send field.
+ *
+ * type* appends a digit to a formatted field and removes it again, paste* pastes
+ * unformatted digits into an empty field. The StringBuilder stands in for the Editable,
+ * *Legacy runs the previous watcher that formats and replaces the whole text.
+ * Both watchers produce the same text, see TextCodecTest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexWatcherBenchmark {
+
+    @Param({"1024", "16384", "65536"})
+    int size;
+
+    private String paste;
+    private final StringBuilder text = new StringBuilder();
+    private final StringBuilder sb = new StringBuilder();
+    private final int[] range = new int[2];
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        char[] digits = new char[size];
+        for(int i = 0; i < size; i++)
+            digits[i] = "0123456789abcdef".charAt(random.nextInt(16));
+        paste = new String(digits);
+        text.setLength(0);
+        edit(text, 0, 0, paste);
+    }
+
+    private void edit(StringBuilder s, int start, int before, String insert) {
+        s.replace(start, start + before, insert);
+        if(TextCodec.formatHex(s, start, before, insert.length(), sb, range))
+            s.replace(range[0], range[1], sb.toString());
+    }
+
+    private void editLegacy(StringBuilder s, int start, int before, String insert) {
+        s.replace(start, start + before, insert);
+        TextCodecLegacy.formatHex(s, sb);
+        String s2 = sb.toString();
+        if(!s2.equals(s.toString()))
+            s.replace(0, s.length(), s2);
+    }
+
+    @Benchmark
+    public int type() {
+        edit(text, text.length(), 0, "a");
+        edit(text, text.length() - 1, 1, "");
+        return text.length();
+    }
+
+    @Benchmark
+    public int typeLegacy() {
+        editLegacy(text, text.length(), 0, "a");
+        editLegacy(text, text.length() - 1, 1, "");
+        return text.length();
+    }
+
+    @Benchmark
+    public int paste() {
+        StringBuilder s = new StringBuilder();
+        edit(s, 0, 0, paste);
+        return s.length();
+    }
+
+    @Benchmark
+    public int pasteLegacy() {
+        StringBuilder s = new StringBuilder();
+        editLegacy(s, 0, 0, paste);
+        return s.length();
+    }
+}
@@ -0,0 +1,103 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SerialService.onSerialRead path: socket threads add chunks, one UI thread drains.
+ * Each producer thread has its own socket (pool + coalescer), all share the UI thread.
+ * Chunks in flight are limited, so the result is end-to-end throughput.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadCoalescerBenchmark {
+
+    private static final int MAX_IN_FLIGHT = 256;
+
+    @State(Scope.Benchmark)
+    public static class Ui {
+        ExecutorService executor;
+
+        @Setup
+        public void setup() {
+            executor = Executors.newSingleThreadExecutor();
+        }
+
+        @TearDown
+        public void tearDown() {
+            executor.shutdownNow();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Socket {
+        @Param({"16", "256", "1024"})
+        int chunkSize;
+
+        ChunkPool pool;
+        ReadCoalescer coalescer;
+        final AtomicInteger inFlight = new AtomicInteger();
+
+        @Setup
+        public void setup(Ui ui) {
+            pool = new ChunkPool();
+            coalescer = new ReadCoalescer(ui.executor, chunks -> {
+                inFlight.addAndGet(-chunks.size());
+                return true;
+            });
+        }
+
+        void read(ByteCounter counter) {
+            while (inFlight.get() >= MAX_IN_FLIGHT)
+                Thread.yield();
+            ChunkPool.Chunk chunk = pool.obtain(chunkSize);
+            chunk.length = chunkSize;
+            inFlight.incrementAndGet();
+            coalescer.add(chunk);
+            counter.bytes += chunkSize;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void producers1(Socket socket, ByteCounter counter) {
+        socket.read(counter);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public void producers2(Socket socket, ByteCounter counter) {
+        socket.read(counter);
+    }
+
+    @Benchmark
+    @Threads(3)
+    public void producers3(Socket socket, ByteCounter counter) {
+        socket.read(counter);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void producers4(Socket socket, ByteCounter counter) {
+        socket.read(counter);
+    }
+}
@@ -0,0 +1,124 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * throughput of the read path while the UI regularly detaches and attaches.
+ *
+ * Models SerialSession: chunks go through ReadCoalescer while attached, else to queue2.
+ * Drains during detach end up in queue1. The UI thread detaches and attaches
+ * like Activity.onStop/onStart and replays queue1, queue2.
+ * Order and completeness are checked by ReadCoalescerTest.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class ReadCoalescerStress {
+
+    private static final int TOGGLE_INTERVAL = 4096;
+    private static final int MAX_IN_FLIGHT = 4 * TOGGLE_INTERVAL;
+
+    @State(Scope.Benchmark)
+    public static class Service {
+        ExecutorService ui;
+        ReadCoalescer coalescer;
+        final ChunkPool pool = new ChunkPool();
+        final ArrayDeque<ChunkPool.Chunk> queue1 = new ArrayDeque<>(); // ui thread
+        final ArrayDeque<ChunkPool.Chunk> queue2 = new ArrayDeque<>(); // synchronized
+        final AtomicLong inFlight = new AtomicLong();
+        volatile boolean attached = true;
+        long sequence; // producer thread
+
+        @Setup(Level.Trial)
+        public void setup() {
+            ui = Executors.newSingleThreadExecutor();
+            coalescer = new ReadCoalescer(ui, this::onSerialReadMain);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            ui.shutdownNow();
+        }
+
+        @TearDown(Level.Iteration)
+        public void drain() throws Exception {
+            ui.submit(this::attach).get();
+            while (inFlight.get() > 0)
+                Thread.sleep(1);
+        }
+
+        void read() {
+            while (inFlight.get() >= MAX_IN_FLIGHT)
+                Thread.yield();
+            ChunkPool.Chunk chunk = pool.obtain(8);
+            long seq = sequence++;
+            for(int i = 0; i < 8; i++)
+                chunk.data[i] = (byte) (seq >>> (56 - 8 * i));
+            chunk.length = 8;
+            inFlight.incrementAndGet();
+            if(attached) {
+                coalescer.add(chunk);
+            } else {
+                synchronized (this) {
+                    if (attached)
+                        coalescer.add(chunk);
+                    else
+                        queue2.add(chunk);
+                }
+            }
+            if(seq % TOGGLE_INTERVAL == 0)
+                ui.execute(attached ? this::detach : this::attach);
+        }
+
+        private boolean onSerialReadMain(ArrayDeque<ChunkPool.Chunk> chunks) {
+            if(attached) {
+                inFlight.addAndGet(-chunks.size());
+                return true;
+            }
+            queue1.addAll(chunks);
+            chunks.clear();
+            return true;
+        }
+
+        private void detach() {
+            attached = false;
+            coalescer.drain();
+        }
+
+        private void attach() {
+            coalescer.drain();
+            synchronized (this) {
+                attached = true;
+            }
+            inFlight.addAndGet(-queue1.size() - queue2.size());
+            ChunkPool.releaseAll(queue1);
+            ChunkPool.releaseAll(queue2);
+        }
+    }
+
+    @Benchmark
+    public void read(Service service) {
+        service.read();
+    }
+}
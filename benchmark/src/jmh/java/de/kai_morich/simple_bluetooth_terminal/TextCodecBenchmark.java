@@ -0,0 +1,119 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * conversions used by TerminalFragment and TextUtil.HexWatcher, per payload size in bytes.
+ * *Legacy methods run the previous implementation, see TextCodecLegacy.
+ * Both implementations give the same results, see TextCodecTest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextCodecBenchmark {
+
+    @Param({"64", "1024", "65536"})
+    int size;
+
+    private byte[] data;
+    private String hex;
+    private String hexInput;
+    private String text;
+    private int carets;
+    private final TextCodec.CaretListener caretListener = (start, end) -> carets++;
+    private final StringBuilder sb = new StringBuilder();
+    private char[] chars;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        data = new byte[size];
+        random.nextBytes(data);
+        StringBuilder hexBuilder = new StringBuilder();
+        TextCodec.toHexString(hexBuilder, data, 0, size);
+        hex = hexBuilder.toString();
+        hexInput = hex.replace(" ", "").toLowerCase(); // pasted unformatted
+        // terminal text: printable with line breaks and some control characters
+        char[] chars = new char[size];
+        for(int i = 0; i < size; i++) {
+            int r = random.nextInt(100);
+            chars[i] = r < 3 ? (char)random.nextInt(32) : r < 6 ? '\n' : (char)(' ' + random.nextInt(95));
+        }
+        text = new String(chars);
+        this.chars = new char[3*size];
+    }
+
+    @Benchmark
+    public String toHexString(ByteCounter counter) {
+        StringBuilder sb = new StringBuilder(3*size);
+        TextCodec.toHexString(sb, data, 0, size);
+        counter.bytes += size;
+        return sb.toString();
+    }
+
+    @Benchmark
+    public String toHexStringLegacy(ByteCounter counter) {
+        StringBuilder sb = new StringBuilder(3*size);
+        TextCodecLegacy.toHexString(sb, data, 0, size);
+        counter.bytes += size;
+        return sb.toString();
+    }
+
+    @Benchmark
+    public int toHexChars(ByteCounter counter) {
+        counter.bytes += size;
+        return TextCodec.toHexChars(data, 0, size, chars, 0, false);
+    }
+
+    @Benchmark
+    public byte[] fromHexString(ByteCounter counter) {
+        counter.bytes += size;
+        return TextCodec.fromHexString(hex);
+    }
+
+    @Benchmark
+    public int toCaretString(ByteCounter counter) {
+        carets = 0;
+        StringBuilder sb = TextCodec.toCaretString(new StringBuilder(), text, true, size, caretListener);
+        counter.bytes += size;
+        return sb.length() + carets;
+    }
+
+    @Benchmark
+    public int toCaretStringLegacy(ByteCounter counter) {
+        carets = 0;
+        StringBuilder sb = TextCodecLegacy.toCaretString(new StringBuilder(), text, true, size, caretListener);
+        counter.bytes += size;
+        return sb.length() + carets;
+    }
+
+    @Benchmark
+    public int hexWatcherFormat(ByteCounter counter) {
+        TextCodec.formatHex(hexInput, sb);
+        counter.bytes += size;
+        return sb.length();
+    }
+
+    @Benchmark
+    public int hexWatcherFormatLegacy(ByteCounter counter) {
+        TextCodecLegacy.formatHex(hexInput, sb);
+        counter.bytes += size;
+        return sb.length();
+    }
+}
@@ -0,0 +1,59 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.IOException;
+
+/**
+ * previous per character TextCodec conversions, kept as baseline for TextCodecBenchmark
+ */
+final class TextCodecLegacy {
+
+    static void toHexString(StringBuilder sb, final byte[] buf, int begin, int end) {
+        for(int pos=begin; pos<end; pos++) {
+            if(sb.length()>0)
+                sb.append(' ');
+            int c;
+            c = (buf[pos]&0xff) / 16;
+            if(c >= 10) c += 'A'-10;
+            else        c += '0';
+            sb.append((char)c);
+            c = (buf[pos]&0xff) % 16;
+            if(c >= 10) c += 'A'-10;
+            else        c += '0';
+            sb.append((char)c);
+        }
+    }
+
+    /**
+     * listener is called for each caret sequence
+     */
+    static <T extends Appendable & CharSequence> T toCaretString(T sb, CharSequence s, boolean keepNewline, int length, TextCodec.CaretListener listener) {
+        try {
+            for(int pos=0; pos<length; pos++)
+                if (TextCodec.isCaret(s.charAt(pos), keepNewline)) {
+                    sb.append('^');
+                    sb.append((char)(s.charAt(pos) + 64));
+                    listener.onCaret(sb.length()-2, sb.length());
+                } else {
+                    sb.append(s.charAt(pos));
+                }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return sb;
+    }
+
+    static void formatHex(CharSequence s, StringBuilder sb) {
+        sb.delete(0,sb.length());
+        int i;
+        for(i=0; i<s.length(); i++) {
+            char c = s.charAt(i);
+            if(c >= '0' && c <= '9') sb.append(c);
+            if(c >= 'A' && c <= 'F') sb.append(c);
+            if(c >= 'a' && c <= 'f') sb.append((char)(c+'A'-'a'));
+        }
+        for(i=2; i<sb.length(); i+=3)
+            sb.insert(i,' ');
+    }
+
+    private TextCodecLegacy() {}
+}
@@ -0,0 +1,229 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JVM stand-in for the Raspberry Pi running server.py, for tests without Bluetooth hardware.
+ *
+ * Commands are acknowledged by ReferenceDevice, duplicates within DUPLICATE_WINDOW are ignored
+ * like in server.py. "START n" switches to Pending, to Cooking one minute before the end
+ * and to Ready after n minutes. "STOP" cancels the timers and switches to Idle.
+ * Optionally floods telemetry, see TelemetryGenerator.
+ *
+ * Runs on LoopbackTransport.Peer streams or as TCP server for TcpTransport, see main().
+ */
+public class DeviceSimulator implements Runnable {
+
+    enum State {Idle, Pending, Cooking, Ready}
+
+    interface StateListener {
+        void onStateChange(State state);
+    }
+
+    static final long DUPLICATE_WINDOW = 30 * 1000;
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final boolean binary;
+    private final long minuteMillis;
+    private final StateListener listener;
+    private final ScheduledExecutorService timer;
+    private final String[] recentCommands = new String[256]; // by sequence
+    private final long[] recentTimes = new long[256];
+    private final Object writeLock = new Object();
+    private volatile TelemetryGenerator telemetry;
+    private State state = State.Idle;
+    private ScheduledFuture<?> cookingTimer, finishTimer;
+    private long commands, duplicates;
+
+    /**
+     * writes of ReferenceDevice, inserted between telemetry records while flooding
+     */
+    private final OutputStream deviceOut = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (writeLock) {
+                TelemetryGenerator telemetry = DeviceSimulator.this.telemetry;
+                if(telemetry == null || !telemetry.offer(b, off, len))
+                    out.write(b, off, len);
+            }
+        }
+    };
+
+    /**
+     * @param minuteMillis duration of a START minute, shorter for tests
+     * @param listener can be null
+     */
+    DeviceSimulator(InputStream in, OutputStream out, boolean binary, long minuteMillis, StateListener listener) {
+        this.in = in;
+        this.out = out;
+        this.binary = binary;
+        this.minuteMillis = minuteMillis;
+        this.listener = listener;
+        timer = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "DeviceSimulator-timer"));
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    synchronized long getCommands() {
+        return commands;
+    }
+
+    synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    TelemetryGenerator getTelemetry() {
+        return telemetry;
+    }
+
+    /**
+     * start telemetry in a new thread, stops when the connection is closed
+     */
+    void startTelemetry(long bytesPerSecond, int minChunk, int maxChunk, int recordSize) {
+        synchronized (writeLock) {
+            stopTelemetry();
+            telemetry = new TelemetryGenerator(out, binary, bytesPerSecond, minChunk, maxChunk, recordSize);
+            new Thread(telemetry, "DeviceSimulator-telemetry").start();
+        }
+    }
+
+    void stopTelemetry() {
+        TelemetryGenerator telemetry = this.telemetry;
+        if(telemetry != null)
+            telemetry.stop();
+    }
+
+    /**
+     * handle commands until the stream is closed
+     */
+    @Override
+    public void run() {
+        new ReferenceDevice(in, deviceOut, binary, this::onCommand).run();
+        stopTelemetry();
+        timer.shutdownNow();
+    }
+
+    private synchronized void onCommand(String command, int sequence) {
+        long now = System.currentTimeMillis();
+        if(sequence >= 0) {
+            int index = sequence & 0xff;
+            boolean duplicate = command.equals(recentCommands[index]) && now - recentTimes[index] < DUPLICATE_WINDOW;
+            recentCommands[index] = command;
+            recentTimes[index] = now;
+            if(duplicate) {
+                duplicates++;
+                return;
+            }
+        }
+        commands++;
+        String[] parts = command.split(" ");
+        if(parts.length == 2 && parts[0].equals("START")) {
+            int minutes;
+            try {
+                minutes = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                return;
+            }
+            cancelTimers();
+            setState(State.Pending);
+            cookingTimer = timer.schedule(() -> setStateIf(State.Pending, State.Cooking),
+                    Math.max(0, minutes - 1) * minuteMillis, TimeUnit.MILLISECONDS);
+            finishTimer = timer.schedule(() -> setStateIf(State.Cooking, State.Ready),
+                    minutes * minuteMillis, TimeUnit.MILLISECONDS);
+        } else if(command.equals("STOP")) {
+            cancelTimers();
+            setState(State.Idle);
+        }
+    }
+
+    private void cancelTimers() {
+        if(cookingTimer != null)
+            cookingTimer.cancel(false);
+        if(finishTimer != null)
+            finishTimer.cancel(false);
+        cookingTimer = finishTimer = null;
+    }
+
+    private synchronized void setStateIf(State expected, State state) {
+        if(this.state == expected)
+            setState(state);
+    }
+
+    private void setState(State state) {
+        this.state = state;
+        if(listener != null)
+            listener.onStateChange(state);
+    }
+
+    /**
+     * TCP server, one simulated device per connection, e.g. for an emulator with TcpTransport("10.0.2.2", port)
+     *
+     *   ./gradlew :benchmark:simulator --args="--port 8888 --rate 100000 --chunk 1:512"
+     */
+    public static void main(String[] args) throws IOException {
+        int port = 8888;
+        boolean binary = false;
+        long rate = -1; // no telemetry
+        int minChunk = 1, maxChunk = 512, recordSize = 64;
+        long minuteMillis = 60 * 1000;
+        for(int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port":   port = Integer.parseInt(args[++i]); break;
+                case "--binary": binary = true; break;
+                case "--rate":   rate = Long.parseLong(args[++i]); break;
+                case "--chunk":  String[] range = args[++i].split(":");
+                                 minChunk = Integer.parseInt(range[0]);
+                                 maxChunk = Integer.parseInt(range[range.length - 1]); break;
+                case "--record": recordSize = Integer.parseInt(args[++i]); break;
+                case "--minute": minuteMillis = Long.parseLong(args[++i]); break;
+                default:
+                    System.err.println("usage: [--port n] [--binary] [--rate bytes/s, 0=unlimited] [--chunk min:max] [--record size] [--minute millis]");
+                    System.exit(1);
+            }
+        }
+        try (ServerSocket server = new ServerSocket(port)) {
+            System.out.println("listening on port " + port);
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                String name = socket.getRemoteSocketAddress().toString();
+                System.out.println(name + " connected");
+                DeviceSimulator device = new DeviceSimulator(socket.getInputStream(), socket.getOutputStream(), binary, minuteMillis,
+                        state -> System.out.println(name + " " + state));
+                if(rate >= 0)
+                    device.startTelemetry(rate, minChunk, maxChunk, recordSize);
+                new Thread(() -> {
+                    long start = System.nanoTime();
+                    device.run();
+                    TelemetryGenerator telemetry = device.getTelemetry();
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    System.out.printf("%s disconnected, %d commands, %d duplicates%s%n", name,
+                            device.getCommands(), device.getDuplicates(),
+                            telemetry == null ? "" : String.format(", telemetry %d records %.0f bytes/s",
+                                    telemetry.getRecords(), telemetry.getBytes() / seconds));
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                }, "DeviceSimulator").start();
+            }
+        }
+    }
+}
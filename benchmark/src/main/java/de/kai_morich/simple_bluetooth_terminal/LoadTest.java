@@ -0,0 +1,265 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * load test of the app side read and write path against DeviceSimulator, without Android.
+ *
+ * Models SerialSocket and SerialSession with the same classes: pooled chunks sized by ReadSizer,
+ * line or frame decoding in the read thread, FlowControl and ReadCoalescer to a single 'UI' thread,
+ * SerialWriter and CommandPipeline for START/STOP commands while the simulator floods telemetry.
+ * Fails with exit code 1 if telemetry records are lost or reordered or commands are not acknowledged.
+ *
+ *   ./gradlew :benchmark:loadTest --args="--duration 10 --rate 0 --chunk 1:1024"
+ *
+ * With --tcp host:port a DeviceSimulator started with --rate is used instead of the in-process one.
+ * --ui-delay makes the 'UI' slower than the flood, to exercise the --flow policy.
+ * --vsync paces UI updates to frames with FramePacer, as the app does:
+ *
+ *   ./gradlew :benchmark:loadTest --args="--duration 10 --ui-delay 2000 --flow COLLAPSE --watermarks 65536:262144"
+ */
+public class LoadTest {
+
+    private final SerialTransport transport;
+    private final boolean binary;
+    private final SerialMetrics metrics = new SerialMetrics();
+    private static final long FRAME_NANOS = 16_666_667;
+
+    private final ScheduledExecutorService ui = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "LoadTest-ui"));
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final ReadCoalescer readCoalescer;
+    private final FlowControl flowControl;
+    private final long uiDelayMicros;
+    private final FramePacer framePacer; // null to post each drain
+    private volatile boolean frameRequested;
+    private final LineFramer lineFramer = new LineFramer(FrameCodec.MAX_PAYLOAD);
+    private final FrameCodec.Decoder frameDecoder = new FrameCodec.Decoder();
+    private final CommandPipeline commandPipeline;
+    private SerialWriter writer;
+    private Thread readThread;
+    private long expectedRecord; // only used in read thread
+    private final AtomicLong recordsIn = new AtomicLong();
+    private final AtomicLong recordErrors = new AtomicLong();
+    private volatile Exception readError;
+
+    /**
+     * @param vsync deliver to the 'UI' with FramePacer at 60 Hz frames, like SerialSession
+     */
+    LoadTest(SerialTransport transport, boolean binary, long uiDelayMicros, boolean vsync) {
+        this.transport = transport;
+        this.binary = binary;
+        this.uiDelayMicros = uiDelayMicros;
+        framePacer = vsync ? new FramePacer(() -> frameRequested = true,
+                (task, delay) -> ui.schedule(task, delay, TimeUnit.MILLISECONDS), metrics) : null;
+        readCoalescer = new ReadCoalescer(vsync ? framePacer : ui, this::onUi);
+        flowControl = new FlowControl(readCoalescer::add, metrics);
+        commandPipeline = new CommandPipeline(this::transmitCommand,
+                (task, delay) -> timer.schedule(task, delay, TimeUnit.MILLISECONDS), metrics);
+    }
+
+    void start() throws IOException {
+        transport.connect();
+        writer = new SerialWriter(transport.getOutputStream(), metrics, e -> readError = e);
+        new Thread(writer, "LoadTest-writer").start();
+        if(framePacer != null)
+            ui.scheduleAtFixedRate(this::onVsync, FRAME_NANOS, FRAME_NANOS, TimeUnit.NANOSECONDS);
+        readThread = new Thread(this::read, "LoadTest-read");
+        readThread.start();
+    }
+
+    void stop() throws InterruptedException {
+        writer.stop();
+        transport.close();
+        readThread.join(); // before ui shutdown, still adds to readCoalescer
+        ui.shutdown();
+        timer.shutdownNow();
+    }
+
+    /**
+     * stands in for Choreographer
+     */
+    private void onVsync() {
+        if(!frameRequested)
+            return;
+        frameRequested = false;
+        long now = System.nanoTime();
+        framePacer.doFrame(now - now % FRAME_NANOS);
+    }
+
+    /**
+     * like SerialSession.onSerialReadMain(), with a fixed cost per UI update
+     */
+    private boolean onUi(ArrayDeque<ChunkPool.Chunk> chunks) {
+        flowControl.onDrained(chunks);
+        long now = System.nanoTime();
+        metrics.uiBatchChunks.record(chunks.size());
+        for(ChunkPool.Chunk chunk : chunks)
+            if(chunk.readTime != 0)
+                metrics.readToUiMicros.record((now - chunk.readTime) / 1000);
+        if(uiDelayMicros > 0)
+            LockSupport.parkNanos(uiDelayMicros * 1000);
+        return true;
+    }
+
+    Future<Void> sendCommand(String command) {
+        return commandPipeline.send(command);
+    }
+
+    private void transmitCommand(String command, int sequence) throws IOException {
+        if(binary)
+            writer.write(FrameCodec.encodeCommand(command, sequence));
+        else
+            writer.write((command + " #" + sequence + "\n").getBytes());
+    }
+
+    /**
+     * like SerialSocket.Connection.run() and SerialSession.onSerialRead()
+     */
+    private void read() {
+        ChunkPool pool = new ChunkPool();
+        ChunkPool.ReadSizer sizer = new ChunkPool.ReadSizer();
+        try {
+            InputStream in = transport.getInputStream();
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                ChunkPool.Chunk chunk = pool.obtain(sizer.next());
+                int len = in.read(chunk.data, 0, Math.min(sizer.next(), chunk.capacity()));
+                if(len < 0)
+                    throw new IOException("end of stream");
+                sizer.update(len);
+                chunk.length = len;
+                chunk.readTime = System.nanoTime();
+                metrics.chunksIn.incrementAndGet();
+                metrics.bytesIn.addAndGet(len);
+                if(binary)
+                    frameDecoder.feed(chunk.data, 0, len, this::onFrame);
+                else
+                    lineFramer.feed(chunk.data, 0, len, this::onLine);
+                flowControl.offer(chunk);
+            }
+        } catch (IOException e) {
+            if(readError == null)
+                readError = e;
+        }
+    }
+
+    private void onLine(byte[] data, int offset, int length) {
+        int ack = CommandPipeline.parseAck(data, offset, length);
+        if(ack >= 0)
+            commandPipeline.onAck(ack);
+        else
+            onRecord(TelemetryGenerator.parseLine(data, offset, length));
+    }
+
+    private void onFrame(int opcode, int sequence, byte[] payload, int offset, int length) {
+        if(opcode == FrameCodec.OP_ACK)
+            commandPipeline.onAck(sequence);
+        else if(opcode == FrameCodec.OP_TELEMETRY)
+            onRecord(TelemetryGenerator.parsePayload(payload, offset, length));
+    }
+
+    private void onRecord(long sequence) {
+        if(sequence != expectedRecord)
+            recordErrors.incrementAndGet();
+        expectedRecord = sequence + 1;
+        recordsIn.incrementAndGet();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String tcp = null;
+        boolean binary = false;
+        long rate = 0;
+        int minChunk = 1, maxChunk = 1024, recordSize = 64;
+        int duration = 10;
+        int commandsPerSecond = 20;
+        long uiDelay = 0;
+        boolean vsync = false;
+        FlowControl.Policy flow = FlowControl.Policy.BLOCK;
+        int lowWatermark = FlowControl.DEFAULT_LOW_WATERMARK, highWatermark = FlowControl.DEFAULT_HIGH_WATERMARK;
+        for(int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--tcp":      tcp = args[++i]; break;
+                case "--binary":   binary = true; break;
+                case "--rate":     rate = Long.parseLong(args[++i]); break;
+                case "--chunk":    String[] range = args[++i].split(":");
+                                   minChunk = Integer.parseInt(range[0]);
+                                   maxChunk = Integer.parseInt(range[range.length - 1]); break;
+                case "--record":   recordSize = Integer.parseInt(args[++i]); break;
+                case "--duration": duration = Integer.parseInt(args[++i]); break;
+                case "--commands": commandsPerSecond = Integer.parseInt(args[++i]); break;
+                case "--ui-delay": uiDelay = Long.parseLong(args[++i]); break;
+                case "--vsync":    vsync = true; break;
+                case "--flow":     flow = FlowControl.Policy.valueOf(args[++i]); break;
+                case "--watermarks": String[] marks = args[++i].split(":");
+                                   lowWatermark = Integer.parseInt(marks[0]);
+                                   highWatermark = Integer.parseInt(marks[1]); break;
+                default:
+                    System.err.println("usage: [--tcp host:port] [--binary] [--rate bytes/s, 0=unlimited] [--chunk min:max] [--record size] [--duration s] [--commands n/s]"
+                            + " [--ui-delay us per UI update] [--vsync] [--flow BLOCK|DROP_OLDEST|COLLAPSE] [--watermarks low:high]");
+                    System.exit(1);
+            }
+        }
+
+        SerialTransport transport;
+        DeviceSimulator device = null;
+        if(tcp != null) {
+            int pos = tcp.lastIndexOf(':');
+            transport = new TcpTransport(tcp.substring(0, pos), Integer.parseInt(tcp.substring(pos + 1)));
+        } else {
+            transport = new LoopbackTransport(false);
+        }
+        LoadTest test = new LoadTest(transport, binary, uiDelay, vsync);
+        test.flowControl.setPolicy(flow, lowWatermark, highWatermark);
+        test.start();
+        if(tcp == null) {
+            LoopbackTransport.Peer peer = ((LoopbackTransport) transport).getPeer();
+            peer.awaitConnect(1000);
+            device = new DeviceSimulator(peer.getInputStream(), peer.getOutputStream(), binary, 60 * 1000, null);
+            device.startTelemetry(rate, minChunk, maxChunk, recordSize);
+            new Thread(device, "DeviceSimulator").start();
+        }
+
+        ArrayList<Future<Void>> commands = new ArrayList<>();
+        long end = System.currentTimeMillis() + duration * 1000L;
+        while (System.currentTimeMillis() < end && test.readError == null) {
+            commands.add(test.sendCommand(commands.size() % 2 == 0 ? "START 5" : "STOP"));
+            Thread.sleep(1000 / Math.max(1, commandsPerSecond));
+        }
+        int failed = 0;
+        for(Future<Void> command : commands) {
+            try {
+                command.get(CommandPipeline.ACK_TIMEOUT * CommandPipeline.MAX_ATTEMPTS, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                failed++;
+            }
+        }
+        SerialMetrics.Snapshot snapshot = test.metrics.snapshot(false);
+        Exception readError = test.readError; // before stop(), which closes the stream
+        test.stop();
+
+        System.out.println(snapshot);
+        System.out.printf("telemetry: %d records received, %d errors%n", test.recordsIn.get(), test.recordErrors.get());
+        if(device != null)
+            System.out.printf("device: %d commands, %d duplicates, %d records sent%n",
+                    device.getCommands(), device.getDuplicates(), device.getTelemetry().getRecords());
+        System.out.printf("commands: %d sent, %d failed%n", commands.size(), failed);
+        boolean ok = test.recordErrors.get() == 0 && failed == 0 && test.recordsIn.get() > 0;
+        if(readError != null) {
+            System.out.println("read error: " + readError);
+            ok = false;
+        }
+        System.out.println(ok ? "PASSED" : "FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,95 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * device side of the command protocols, as stand-in for server.py in tests.
+ *
+ * Reads newline terminated text commands or FrameCodec frames and reports each command.
+ * Commands with sequence number, text "START 5 #12" or binary frames, are acknowledged with
+ * "ACK 12" or OP_ACK, as expected by CommandPipeline. Retransmitted duplicates are reported again.
+ * Runs until the stream is closed, e.g. on a LoopbackTransport.Peer.
+ */
+public class ReferenceDevice implements Runnable {
+
+    interface CommandListener {
+        /**
+         * @param sequence frame sequence number, -1 for text commands
+         */
+        void onCommand(String command, int sequence);
+    }
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final boolean binary;
+    private final CommandListener listener;
+    private final LineFramer lineFramer = new LineFramer(FrameCodec.MAX_PAYLOAD);
+    private final FrameCodec.Decoder frameDecoder = new FrameCodec.Decoder();
+    private final byte[] ack = new byte[FrameCodec.HEADER_SIZE + 1 + FrameCodec.CRC_SIZE];
+    private IOException writeError;
+
+    ReferenceDevice(InputStream in, OutputStream out, boolean binary, CommandListener listener) {
+        this.in = in;
+        this.out = out;
+        this.binary = binary;
+        this.listener = listener;
+    }
+
+    int getCrcErrors() {
+        return frameDecoder.getCrcErrors();
+    }
+
+    @Override
+    public void run() {
+        byte[] buffer = new byte[1024];
+        try {
+            int len;
+            while ((len = in.read(buffer)) >= 0) {
+                if(binary)
+                    frameDecoder.feed(buffer, 0, len, this::onFrame);
+                else
+                    lineFramer.feed(buffer, 0, len, this::onLine);
+                if(writeError != null)
+                    throw writeError;
+            }
+        } catch (IOException ignored) {
+            // closed by app side
+        }
+    }
+
+    private void onLine(byte[] data, int offset, int length) {
+        String command = new String(data, offset, length).trim();
+        int sequence = -1;
+        int pos = command.lastIndexOf(" #");
+        if(pos >= 0) {
+            try {
+                sequence = Integer.parseInt(command.substring(pos + 2));
+                command = command.substring(0, pos);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        if(!command.isEmpty())
+            listener.onCommand(command, sequence);
+        if(sequence >= 0) {
+            try {
+                out.write(("ACK " + sequence + "\n").getBytes());
+            } catch (IOException e) {
+                writeError = e;
+            }
+        }
+    }
+
+    private void onFrame(int opcode, int sequence, byte[] payload, int offset, int length) {
+        String command = FrameCodec.decodeCommand(opcode, payload, offset, length);
+        if(command != null)
+            listener.onCommand(command, sequence);
+        try {
+            int size = FrameCodec.encode(FrameCodec.OP_ACK, sequence, new byte[]{(byte) sequence}, 0, 1, ack, 0);
+            out.write(ack, 0, size);
+        } catch (IOException e) {
+            writeError = e;
+        }
+    }
+}
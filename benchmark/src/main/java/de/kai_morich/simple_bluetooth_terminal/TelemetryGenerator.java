@@ -0,0 +1,189 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * telemetry flood at a target rate, written in chunks of random size.
+ *
+ * Records are text lines "TEL 0000000042 xxx...\n" or FrameCodec OP_TELEMETRY frames with
+ * the sequence number (4) at the start of the payload, so the receiver can detect lost data.
+ * Chunk boundaries do not follow record boundaries, like reads from a real RFCOMM link.
+ * Messages offered by the device while running, e.g. acks, are inserted between records.
+ */
+final class TelemetryGenerator implements Runnable {
+
+    static final int MIN_TEXT_RECORD = 16; // "TEL " + 10 digits + " " + "\n"
+    static final int MIN_BINARY_RECORD = FrameCodec.HEADER_SIZE + 4 + FrameCodec.CRC_SIZE;
+    private static final byte[] PREFIX = "TEL ".getBytes();
+    private static final int SEQUENCE_DIGITS = 10;
+
+    private final OutputStream out;
+    private final boolean binary;
+    private final long bytesPerSecond;
+    private final int minChunk, maxChunk;
+    private final int recordSize;
+    private final Random random = new Random();
+    private final ArrayDeque<byte[]> inserted = new ArrayDeque<>(); // guarded by this
+    private boolean running = true; // guarded by this
+    private volatile boolean stopRequested;
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * @param bytesPerSecond 0 for as fast as possible
+     * @param minChunk,maxChunk uniform distribution of write sizes
+     * @param recordSize bytes per line or frame
+     */
+    TelemetryGenerator(OutputStream out, boolean binary, long bytesPerSecond, int minChunk, int maxChunk, int recordSize) {
+        if(minChunk < 1 || maxChunk < minChunk)
+            throw new IllegalArgumentException("invalid chunk size");
+        if(recordSize < (binary ? MIN_BINARY_RECORD : MIN_TEXT_RECORD)
+                || recordSize > FrameCodec.HEADER_SIZE + FrameCodec.MAX_PAYLOAD + FrameCodec.CRC_SIZE)
+            throw new IllegalArgumentException("invalid record size");
+        this.out = out;
+        this.binary = binary;
+        this.bytesPerSecond = bytesPerSecond;
+        this.minChunk = minChunk;
+        this.maxChunk = maxChunk;
+        this.recordSize = recordSize;
+    }
+
+    long getRecords() {
+        return records.get();
+    }
+
+    long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * the current record is completed, then run() returns
+     */
+    void stop() {
+        stopRequested = true;
+    }
+
+    /**
+     * @return false if not running, the caller then writes directly
+     */
+    synchronized boolean offer(byte[] data, int offset, int length) {
+        if(!running)
+            return false;
+        inserted.add(Arrays.copyOfRange(data, offset, offset + length));
+        return true;
+    }
+
+    private synchronized byte[] pollInserted() {
+        return inserted.poll();
+    }
+
+    @Override
+    public void run() {
+        byte[] chunk = new byte[maxChunk];
+        byte[] record = new byte[recordSize];
+        byte[] payload = new byte[FrameCodec.MAX_PAYLOAD];
+        Arrays.fill(record, (byte) 'x');
+        Arrays.fill(payload, (byte) 'x');
+        byte[] current = record;
+        int recordPos = 0, recordLength = 0;
+        long sequence = 0;
+        long start = System.nanoTime();
+        long sent = 0;
+        try {
+            while (!stopRequested) {
+                int size = minChunk + random.nextInt(maxChunk - minChunk + 1);
+                int len = 0;
+                while (len < size) {
+                    if(recordPos == recordLength) {
+                        current = pollInserted();
+                        if(current == null) {
+                            current = record;
+                            encode(sequence++, record, payload);
+                            records.incrementAndGet();
+                        }
+                        recordPos = 0;
+                        recordLength = current.length;
+                    }
+                    int n = Math.min(size - len, recordLength - recordPos);
+                    System.arraycopy(current, recordPos, chunk, len, n);
+                    recordPos += n;
+                    len += n;
+                }
+                if(bytesPerSecond > 0) {
+                    long wait = start + (long) (sent * 1e9 / bytesPerSecond) - System.nanoTime();
+                    if(wait > 0)
+                        LockSupport.parkNanos(wait);
+                }
+                out.write(chunk, 0, len);
+                sent += len;
+                bytes.addAndGet(len);
+            }
+            out.write(current, recordPos, recordLength - recordPos);
+        } catch (IOException ignored) {
+            // closed by app side
+        }
+        synchronized (this) {
+            running = false;
+            byte[] data;
+            try {
+                while ((data = inserted.poll()) != null)
+                    out.write(data);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void encode(long sequence, byte[] record, byte[] payload) {
+        if(binary) {
+            payload[0] = (byte) (sequence >>> 24);
+            payload[1] = (byte) (sequence >>> 16);
+            payload[2] = (byte) (sequence >>> 8);
+            payload[3] = (byte) sequence;
+            FrameCodec.encode(FrameCodec.OP_TELEMETRY, (int) sequence, payload, 0,
+                    recordSize - FrameCodec.HEADER_SIZE - FrameCodec.CRC_SIZE, record, 0);
+        } else {
+            System.arraycopy(PREFIX, 0, record, 0, PREFIX.length);
+            long value = sequence;
+            for(int i = PREFIX.length + SEQUENCE_DIGITS - 1; i >= PREFIX.length; i--) {
+                record[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            record[PREFIX.length + SEQUENCE_DIGITS] = ' ';
+            record[recordSize - 1] = '\n';
+        }
+    }
+
+    /**
+     * @return sequence number of a telemetry line without delimiter, else -1
+     */
+    static long parseLine(byte[] data, int offset, int length) {
+        if(length < MIN_TEXT_RECORD - 1)
+            return -1;
+        for(int i = 0; i < PREFIX.length; i++)
+            if(data[offset + i] != PREFIX[i])
+                return -1;
+        long sequence = 0;
+        for(int i = offset + PREFIX.length; i < offset + PREFIX.length + SEQUENCE_DIGITS; i++) {
+            if(data[i] < '0' || data[i] > '9')
+                return -1;
+            sequence = sequence * 10 + data[i] - '0';
+        }
+        return sequence;
+    }
+
+    /**
+     * @return sequence number of an OP_TELEMETRY payload, else -1
+     */
+    static long parsePayload(byte[] payload, int offset, int length) {
+        if(length < 4)
+            return -1;
+        return ((payload[offset] & 0xffL) << 24) | ((payload[offset + 1] & 0xff) << 16)
+                | ((payload[offset + 2] & 0xff) << 8) | (payload[offset + 3] & 0xff);
+    }
+}
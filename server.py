@@ -1,6 +1,7 @@
 from bluedot.btcomm import BluetoothServer
 import RPi.GPIO as GPIO
 import threading  # ¡Importante para los temporizadores!
+import time
 
 # --- Configuración de Hardware ---
 PENDING_PIN = 23    # LED 1: "Pendiente" (Se enciende al recibir comando)
@@ -13,6 +14,13 @@ hardware_ready = False
 cooking_timer = None
 finish_timer = None
 
+# Comandos con número de secuencia ("START 5 #12") se confirman con "ACK 12".
+# La app reenvía el comando si no llega el ACK, los duplicados se ignoran.
+# Solo dentro de una conexión: tras reconectar la secuencia de la app puede repetirse.
+DUPLICATE_WINDOW_SECONDS = 30
+recent_commands = {}  # secuencia -> (comando, hora)
+rx_buffer = ""
+
 try:
     GPIO.setmode(GPIO.BCM)
     # Configurar los 3 pines como salida y apagados
@@ -51,14 +59,45 @@ def finish_breakfast():
         print("SIM: LED Listo ENCENDIDO")
 
 # --- Lógica de Comandos ---
+def on_client_connected():
+    """Nueva conexión: los duplicados y líneas incompletas anteriores ya no valen."""
+    global rx_buffer
+    recent_commands.clear()
+    rx_buffer = ""
+
 def on_data_received(data):
     """
     Esta función se llamará cada vez que llegue data
-    desde la app Bluetooth Terminal.
+    desde la app Bluetooth Terminal. Puede traer varias líneas
+    o una línea incompleta.
     """
+    global rx_buffer
+    rx_buffer += data
+    lines = rx_buffer.split("\n")
+    rx_buffer = lines.pop()  # resto sin salto de línea
+    for line in lines:
+        on_line_received(line)
+
+def on_line_received(line):
+    """Separa el número de secuencia, confirma y filtra duplicados."""
+    command = line.strip() # Limpiar espacios en blanco o saltos de línea
+    if " #" in command:
+        text, _, seq_text = command.rpartition(" #")
+        if seq_text.isdigit():
+            seq = int(seq_text)
+            s.send(f"ACK {seq}\n")
+            now = time.monotonic()
+            last = recent_commands.get(seq)
+            recent_commands[seq] = (text, now)
+            if last and last[0] == text and now - last[1] < DUPLICATE_WINDOW_SECONDS:
+                print(f"Comando duplicado ignorado: '{text}' #{seq}")
+                return
+            command = text
+    handle_command(command)
+
+def handle_command(command):
     global cooking_timer, finish_timer
     
-    command = data.strip() # Limpiar espacios en blanco o saltos de línea
     print(f"Comando recibido: '{command}'")
 
     # --- Lógica para START X ---
@@ -136,7 +175,7 @@ print("Esperando conexión desde la app 'Bluetooth Terminal'...")
 
 # "on_data_received" es la función que se ejecutará
 # cada vez que lleguen datos.
-s = BluetoothServer(on_data_received)
+s = BluetoothServer(on_data_received, when_client_connects=on_client_connected)
 
 try:
     # Mantiene el script vivo